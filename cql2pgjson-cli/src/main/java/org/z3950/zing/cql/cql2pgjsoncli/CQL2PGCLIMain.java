@@ -3,7 +3,12 @@ import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,6 +20,7 @@ import org.apache.commons.cli.*;
 import org.apache.commons.lang3.StringUtils;
 import org.folio.cql2pgjson.exception.FieldException;
 import org.folio.cql2pgjson.exception.QueryValidationException;
+import org.folio.cql2pgjson.executor.CopyExporter;
 import org.folio.cql2pgjson.model.SqlSelect;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -25,6 +31,8 @@ public class CQL2PGCLIMain {
   /** allow to inject a different exit method for unit testing */
   static IntConsumer exit = System::exit;
   private static Logger logger = Logger.getLogger(CQL2PGCLIMain.class.getName());
+  /** number of bytes between two progress reports of the export */
+  private static final long PROGRESS_INTERVAL = 100L * 1024 * 1024;
 
   public static void main( String[] args ) {
     try {
@@ -39,7 +47,7 @@ public class CQL2PGCLIMain {
 
   static String handleOptions(String[] args) throws
       FieldException, IOException, QueryValidationException,
-      ParseException {
+      ParseException, SQLException {
     Options options = new Options();
 
     Option database = Option.builder("t")
@@ -60,9 +68,36 @@ public class CQL2PGCLIMain {
         .desc("Path to RMB-style schema.json to describe database")
         .build();
 
+    Option select = Option.builder("s")
+        .hasArg()
+        .required(false)
+        .desc("Comma separated list of JSON fields to select, for example id,title,holdings.barcode")
+        .build();
+
+    Option url = Option.builder("u")
+        .hasArg()
+        .required(false)
+        .desc("JDBC URL of the database for -o, for example jdbc:postgresql://localhost:5432/folio?user=folio&password=folio")
+        .build();
+
+    Option output = Option.builder("o")
+        .hasArg()
+        .required(false)
+        .desc("Export the matching records into this file using COPY instead of printing the SQL, needs -u")
+        .build();
+
+    Option binary = Option.builder("x")
+        .required(false)
+        .desc("Use the binary COPY format for -o")
+        .build();
+
     options.addOption(database);
     options.addOption(field);
     options.addOption(dbschema);
+    options.addOption(select);
+    options.addOption(url);
+    options.addOption(output);
+    options.addOption(binary);
 
     CommandLineParser parser = new DefaultParser();
     CommandLine line = parser.parse(options, args);
@@ -74,7 +109,35 @@ public class CQL2PGCLIMain {
     }
     List<String> cliArgs = line.getArgList();
     String cql = cliArgs.get(0);
-    return parseCQL(cql2pgJson, line.getOptionValue("t"), cql);
+    String selectList = "*";
+    if(line.hasOption("s")) {
+      selectList = cql2pgJson.toSqlProjection(Arrays.asList(line.getOptionValue("s").split(",")));
+    } else if (line.hasOption("o") && ! line.hasOption("x")) {
+      // the text format of the export needs a single jsonb column
+      selectList = line.getOptionValue("f", "jsonb");
+    }
+    String sql = parseCQL(cql2pgJson, line.getOptionValue("t"), cql, selectList);
+    if (line.hasOption("o")) {
+      if (! line.hasOption("u")) {
+        throw new ParseException("Option -o needs option -u");
+      }
+      return export(line.getOptionValue("u"), sql, line.hasOption("x"), Paths.get(line.getOptionValue("o")));
+    }
+    return sql;
+  }
+
+  /**
+   * Export the result of the SQL query using COPY, print the progress to stderr.
+   *
+   * @return the number of rows, bytes and the throughput
+   */
+  static String export(String url, String sql, boolean binary, Path file) throws SQLException, IOException {
+    try (Connection connection = DriverManager.getConnection(url)) {
+      CopyExporter copyExporter = new CopyExporter(connection);
+      copyExporter.setBinary(binary);
+      copyExporter.setProgressListener(stats -> System.err.println(stats), PROGRESS_INTERVAL);
+      return "Exported " + copyExporter.export(sql, file) + " to " + file;
+    }
   }
 
   static String readFile(String path, Charset encoding) throws IOException
@@ -88,14 +151,19 @@ public class CQL2PGCLIMain {
 
   static protected String parseCQL(CQL2PgJSON cql2pgJson, String dbName, String cql) throws IOException,
     QueryValidationException {
+    return parseCQL(cql2pgJson, dbName, cql, "*");
+  }
+
+  static protected String parseCQL(CQL2PgJSON cql2pgJson, String dbName, String cql, String selectList)
+    throws IOException, QueryValidationException {
     SqlSelect sql = cql2pgJson.toSql(cql);
     String orderby = sql.getOrderBy();
     logger.log(Level.FINE, String.format("orderby for cql query '%s' is '%s'", cql, orderby));
     if(StringUtils.isBlank(orderby)) {
-      return String.format("select * from %s where %s", dbName, sql.getWhere());
+      return String.format("select %s from %s where %s", selectList, dbName, sql.getWhere());
     }
-    return String.format("select * from %s where %s order by %s",
-        dbName, sql.getWhere(), orderby);
+    return String.format("select %s from %s where %s order by %s",
+        selectList, dbName, sql.getWhere(), orderby);
   }
 
   /*
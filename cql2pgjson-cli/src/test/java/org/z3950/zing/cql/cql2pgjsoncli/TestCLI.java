@@ -3,6 +3,7 @@ package org.z3950.zing.cql.cql2pgjsoncli;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.nio.file.Paths;
+import java.sql.SQLException;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.ParseException;
@@ -53,7 +54,7 @@ public class TestCLI {
 
   @Test
   public void testCLIWithNoSchemaOrDBSchema() throws FieldException, IOException,
-      QueryValidationException, ParseException {
+      QueryValidationException, ParseException, SQLException {
     String cql = "holdingsRecords.permanentLocationId=\"fcd64ce1-6995-48f0-840e-89ffa2\"";
     String[] args = new String[] {"-t", "instance", "-f", "jsonb", cql };
     String fullFieldName = "instance.jsonb";
@@ -68,7 +69,7 @@ public class TestCLI {
 
   @Test
   public void testCLIWithDBSchema() throws FieldException, IOException,
-      ParseException, QueryValidationException {
+      ParseException, QueryValidationException, SQLException {
     String cql = "hrid=\"fcd64ce1-6995-48f0-840e-89ffa2\"";
     String[] args = new String[] {"-t", "instance", "-f", "jsonb", "-b", dbSchemaPath, cql };
     String fullFieldName = "instance.jsonb";
@@ -106,8 +107,22 @@ public class TestCLI {
         "select * from instance where to_tsvector('simple', f_unaccent(instance.jsonb->>'title')) @@ to_tsquery('simple', f_unaccent('foo'))");
   }
 
+  @Test
+  public void testCLISelect() throws Exception {
+    String[] args = new String[] { "-t", "instance", "-s", "id,holdings.barcode", "cql.allRecords=1" };
+    assertEquals("select jsonb_build_object('id', instance.jsonb->'id', "
+        + "'holdings.barcode', instance.jsonb->'holdings'->'barcode') from instance where true",
+        handleOptions(args));
+  }
+
   @Test(expected = QueryValidationException.class)
   public void testCLIParseException() throws Exception {
     testCLI("=", null);
   }
+
+  @Test(expected = ParseException.class)
+  public void testCLIExportWithoutUrl() throws Exception {
+    handleOptions(new String [] {"-t", "instance", "-o", "instance.txt", "cql.allRecords=1"});
+  }
+
 }
@@ -0,0 +1,256 @@
+package org.folio.cql2pgjson.executor;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.folio.cql2pgjson.model.SqlSelect;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * Export the result of an SQL query using COPY (SELECT ...) TO STDOUT and the PostgreSQL CopyManager.
+ * <p>
+ * The bytes that PostgreSQL sends are written to the output as they arrive, no Java object is created
+ * per row. This is much faster than reading a ResultSet for millions of rows. The output uses the binary
+ * format of COPY, or a text format for a query with a single jsonb column that writes each value as is,
+ * one row per line, see
+ * <a href="https://www.postgresql.org/docs/current/sql-copy.html">https://www.postgresql.org/docs/current/sql-copy.html</a>.
+ * <p>
+ * The text format is the CSV format of COPY with a tab as delimiter and a control character as quote,
+ * the text format of COPY would escape backslashes. The output of a jsonb value never contains a tab,
+ * a newline or a control character, therefore nothing is quoted or escaped and the result is valid NDJSON.
+ * Other types like text or json may contain a newline that would be written as is, they are rejected.
+ * <p>
+ * This requires the PostgreSQL JDBC driver, a provided dependency of this library.
+ * <p>
+ * Example:
+ * <pre>
+ * SqlSelect sqlSelect = new CQL2PgJSON("users.jsonb").toSql("name=Jo sortBy name");
+ * ExecutionStats stats = new CopyExporter(connection).export("users", "jsonb", sqlSelect, Paths.get("users.txt"));
+ * </pre>
+ */
+public class CopyExporter {
+  private static final Logger logger = Logger.getLogger(CopyExporter.class.getName());
+
+  /** COPY options of the text format: CSV that never quotes or escapes a jsonb value */
+  private static final String TEXT_FORMAT = " (FORMAT csv, DELIMITER e'\\t', QUOTE e'\\x01')";
+
+  private final Connection connection;
+  private boolean binary = false;
+  private long progressInterval = 64L * 1024 * 1024;
+  private Consumer<ExecutionStats> progressListener;
+
+  /**
+   * @param connection  a connection of the PostgreSQL JDBC driver, or a wrapper of it
+   */
+  public CopyExporter(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @return true for the binary format of COPY, false for the text format
+   */
+  public boolean isBinary() {
+    return binary;
+  }
+
+  /**
+   * @param binary  true for the binary format of COPY, false for the text format (default)
+   */
+  public void setBinary(boolean binary) {
+    this.binary = binary;
+  }
+
+  /**
+   * @param progressListener  called after each progressInterval bytes with the bytes and the time so far,
+   *     and with the number of rows for the text format; null for none
+   * @param progressInterval  number of bytes between two calls
+   * @throws IllegalArgumentException if progressInterval is less than 1
+   */
+  public void setProgressListener(Consumer<ExecutionStats> progressListener, long progressInterval) {
+    if (progressInterval < 1) {
+      throw new IllegalArgumentException("progressInterval must be at least 1: " + progressInterval);
+    }
+    this.progressListener = progressListener;
+    this.progressInterval = progressInterval;
+  }
+
+  /**
+   * Export the column of the matching records.
+   *
+   * @param tableName  the table to query
+   * @param column  the column to export, for example the JSONB column; it must be of type jsonb
+   *     for the text format
+   * @param sqlSelect  WHERE and ORDER BY clause, for example from CQL2PgJSON.toSql(String)
+   * @param out  where to write to, it is flushed but not closed
+   * @return number of rows and bytes and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   * @throws IllegalArgumentException if the text format is used and column is not of type jsonb
+   */
+  public ExecutionStats export(String tableName, String column, SqlSelect sqlSelect, OutputStream out)
+      throws SQLException, IOException {
+    String sql = "SELECT " + column + " FROM " + tableName;
+    if (! sqlSelect.toString().isEmpty()) {
+      sql += " " + sqlSelect;
+    }
+    return export(sql, out);
+  }
+
+  /**
+   * Export the column of the matching records into a file, an existing file is overwritten.
+   *
+   * @param tableName  the table to query
+   * @param column  the column to export, for example the JSONB column; it must be of type jsonb
+   *     for the text format
+   * @param sqlSelect  WHERE and ORDER BY clause, for example from CQL2PgJSON.toSql(String)
+   * @param file  where to write to
+   * @return number of rows and bytes and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   * @throws IllegalArgumentException if the text format is used and column is not of type jsonb
+   */
+  public ExecutionStats export(String tableName, String column, SqlSelect sqlSelect, Path file)
+      throws SQLException, IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+      return export(tableName, column, sqlSelect, out);
+    }
+  }
+
+  /**
+   * Export the result of the SQL query into a file, an existing file is overwritten.
+   *
+   * @param sql  the SQL query, for the text format it must return a single jsonb column
+   * @param file  where to write to
+   * @return number of rows and bytes and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   * @throws IllegalArgumentException if the text format is used and the query doesn't return a single jsonb column
+   */
+  public ExecutionStats export(String sql, Path file) throws SQLException, IOException {
+    try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+      return export(sql, out);
+    }
+  }
+
+  /**
+   * Export the result of the SQL query into a channel.
+   *
+   * @param sql  the SQL query, for the text format it must return a single jsonb column
+   * @param channel  where to write to, it is not closed
+   * @return number of rows and bytes and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   * @throws IllegalArgumentException if the text format is used and the query doesn't return a single jsonb column
+   */
+  public ExecutionStats export(String sql, WritableByteChannel channel) throws SQLException, IOException {
+    return export(sql, Channels.newOutputStream(channel));
+  }
+
+  /**
+   * Export the result of the SQL query.
+   *
+   * @param sql  the SQL query, a SELECT statement without trailing semicolon; for the text format
+   *     it must return a single jsonb column
+   * @param out  where to write to, it is flushed but not closed
+   * @return number of rows and bytes and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   * @throws IllegalArgumentException if the text format is used and the query doesn't return a single jsonb column
+   */
+  public ExecutionStats export(String sql, OutputStream out) throws SQLException, IOException {
+    if (! binary) {
+      checkSingleJsonbColumn(sql);
+    }
+    String copy = "COPY (" + sql + ") TO STDOUT" + (binary ? " (FORMAT binary)" : TEXT_FORMAT);
+    CopyManager copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+    long start = System.nanoTime();
+    CountingOutputStream counting = new CountingOutputStream(out, start);
+    long rows = copyManager.copyOut(copy, counting);
+    counting.flush();
+    ExecutionStats stats = new ExecutionStats(rows, counting.bytes, System.nanoTime() - start);
+    logger.log(Level.INFO, "{0}: {1}", new Object[] {stats, copy});
+    return stats;
+  }
+
+  /**
+   * Get the result columns of the query without fetching a row. A plain Statement is used because
+   * a PreparedStatement would take the jsonb ? operator for a parameter.
+   *
+   * @throws IllegalArgumentException if the query doesn't return a single jsonb column
+   */
+  private void checkSingleJsonbColumn(String sql) throws SQLException {
+    try (Statement statement = connection.createStatement();
+        ResultSet resultSet = statement.executeQuery("SELECT * FROM (" + sql + ") AS export LIMIT 0")) {
+      ResultSetMetaData metaData = resultSet.getMetaData();
+      if (metaData.getColumnCount() != 1 || ! "jsonb".equalsIgnoreCase(metaData.getColumnTypeName(1))) {
+        throw new IllegalArgumentException("The text format needs a single jsonb column, use the binary format: "
+            + sql);
+      }
+    }
+  }
+
+  /**
+   * Count the bytes, and the rows of the text format, and report the progress.
+   */
+  private class CountingOutputStream extends FilterOutputStream {
+    private final long start;
+    private long bytes = 0;
+    private long rows = 0;
+    private long nextProgress = progressInterval;
+
+    CountingOutputStream(OutputStream out, long start) {
+      super(out);
+      this.start = start;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count(b);
+      bytes++;
+      progress();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      if (! binary) {
+        for (int i = off; i < off + len; i++) {
+          count(b[i]);
+        }
+      }
+      bytes += len;
+      progress();
+    }
+
+    private void count(int b) {
+      // the text format has a single jsonb column, jsonb has no newline within a value, each newline ends a row
+      if (! binary && b == '\n') {
+        rows++;
+      }
+    }
+
+    private void progress() {
+      if (progressListener == null || bytes < nextProgress) {
+        return;
+      }
+      nextProgress = (bytes / progressInterval + 1) * progressInterval;
+      progressListener.accept(new ExecutionStats(rows, bytes, System.nanoTime() - start));
+    }
+  }
+}
@@ -0,0 +1,79 @@
+package org.folio.cql2pgjson.executor;
+
+/**
+ * Number of rows, optional number of bytes, and elapsed time of a query execution.
+ */
+public class ExecutionStats {
+  private final long rows;
+  private final long bytes;
+  private final long nanos;
+
+  /**
+   * @param rows  number of rows written
+   * @param nanos  elapsed time in nanoseconds
+   */
+  public ExecutionStats(long rows, long nanos) {
+    this(rows, 0, nanos);
+  }
+
+  /**
+   * @param rows  number of rows written
+   * @param bytes  number of bytes written, 0 if not counted
+   * @param nanos  elapsed time in nanoseconds
+   */
+  public ExecutionStats(long rows, long bytes, long nanos) {
+    this.rows = rows;
+    this.bytes = bytes;
+    this.nanos = nanos;
+  }
+
+  /**
+   * @return number of rows written
+   */
+  public long getRows() {
+    return rows;
+  }
+
+  /**
+   * @return number of bytes written, 0 if not counted
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return elapsed time in milliseconds
+   */
+  public long getMillis() {
+    return nanos / 1000000;
+  }
+
+  /**
+   * @return rows per second, 0 if no time has elapsed
+   */
+  public double getRowsPerSecond() {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return rows * 1e9 / nanos;
+  }
+
+  /**
+   * @return megabytes (10^6 bytes) per second, 0 if no time has elapsed
+   */
+  public double getMegabytesPerSecond() {
+    if (nanos <= 0) {
+      return 0;
+    }
+    return bytes * 1e3 / nanos;
+  }
+
+  @Override
+  public String toString() {
+    String s = String.format("%d rows in %d ms, %.0f rows/s", rows, getMillis(), getRowsPerSecond());
+    if (bytes > 0) {
+      s += String.format(", %d bytes, %.1f MB/s", bytes, getMegabytesPerSecond());
+    }
+    return s;
+  }
+}
@@ -0,0 +1,370 @@
+package org.folio.cql2pgjson.executor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.folio.cql2pgjson.model.SqlFanOut;
+import org.folio.cql2pgjson.util.Cql2SqlUtil;
+
+/**
+ * Run the branches of a query concurrently, each on its own connection, and stream the merged result
+ * as NDJSON like {@link QueryExecutor}.
+ * <p>
+ * Each branch is sorted by the database. A k-way merge combines the sorted branches and drops a record
+ * that several branches return, the primary key is the last sort key and makes duplicates adjacent.
+ * This uses several cores of the database for a large OR query. Each branch runs on its own thread
+ * that this class starts and stops.
+ * <p>
+ * The merge compares text using the default collation of the database, see {@link #textComparator(String)},
+ * and JSONB numbers numerically, this is what CQL2PgJSON.toSqlFanOut(String) generates.
+ * <p>
+ * Example:
+ * <pre>
+ * SqlFanOut fanOut = new CQL2PgJSON("users.jsonb").toSqlFanOut("name=Jo or email=Jo sortBy name");
+ * ExecutionStats stats = new FanOutExecutor(dataSource).stream("users", "jsonb", fanOut, System.out);
+ * </pre>
+ */
+public class FanOutExecutor {
+  private static final Logger logger = Logger.getLogger(FanOutExecutor.class.getName());
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private final DataSource dataSource;
+  private int fetchSize = 1000;
+  /** compares text like the default collation of the database, null until read from the database */
+  private Comparator<String> textComparator;
+
+  /**
+   * A row of a branch, or the end or the failure of the branch.
+   */
+  private static class Row {
+    private final BlockingQueue<Row> queue;
+    private final String [] sortValues;
+    private final String value;
+    private final boolean json;
+    private final Throwable exception;
+
+    Row(BlockingQueue<Row> queue, String [] sortValues, String value, boolean json, Throwable exception) {
+      this.queue = queue;
+      this.sortValues = sortValues;
+      this.value = value;
+      this.json = json;
+      this.exception = exception;
+    }
+
+    boolean isEnd() {
+      return sortValues == null;
+    }
+  }
+
+  /**
+   * @param dataSource  where to get a connection for each branch from, usually a connection pool; it must
+   *     provide a connection for each branch at the same time
+   */
+  public FanOutExecutor(DataSource dataSource) {
+    this.dataSource = dataSource;
+  }
+
+  /**
+   * @return number of rows to fetch from the server-side cursor at a time
+   */
+  public int getFetchSize() {
+    return fetchSize;
+  }
+
+  /**
+   * @param fetchSize  number of rows to fetch from the server-side cursor of each branch at a time and
+   *     number of rows of each branch that wait for the merge, default is 1000
+   * @throws IllegalArgumentException if fetchSize is less than 1
+   */
+  public void setFetchSize(int fetchSize) {
+    if (fetchSize < 1) {
+      throw new IllegalArgumentException("fetchSize must be at least 1: " + fetchSize);
+    }
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * Stream the column of the matching records, one JSON value per line. A json or jsonb column is
+   * written as is, any other column as JSON string.
+   *
+   * @param tableName  the table to query
+   * @param column  the column to output, for example the JSONB column
+   * @param fanOut  the branches and the sort keys
+   * @param out  where to write the NDJSON to, it is flushed but not closed
+   * @return number of rows and elapsed time
+   * @throws SQLException on database failure of any branch
+   * @throws IOException on write failure
+   * @throws RuntimeException if a branch fails with a RuntimeException, it is rethrown
+   */
+  public ExecutionStats stream(String tableName, String column, SqlFanOut fanOut, OutputStream out)
+      throws SQLException, IOException {
+    long start = System.nanoTime();
+    long rows = 0;
+    List<SqlFanOut.SortKey> sortKeys = fanOut.getSortKeys();
+    Comparator<String> text = textComparator();
+    List<Thread> threads = new ArrayList<>();
+    try {
+      PriorityQueue<Row> heads = new PriorityQueue<>(comparator(sortKeys, text));
+      List<BlockingQueue<Row>> queues = new ArrayList<>();
+      for (String where : fanOut.getWheres()) {
+        String sql = branchSql(tableName, column, where, fanOut);
+        BlockingQueue<Row> queue = new ArrayBlockingQueue<>(fetchSize);
+        queues.add(queue);
+        Thread thread = new Thread(() -> fetch(sql, sortKeys.size(), queue),
+            "FanOutExecutor-branch-" + queues.size());
+        // don't keep the JVM alive if a query doesn't react to the interrupt
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      }
+      for (BlockingQueue<Row> queue : queues) {
+        addHead(heads, queue);
+      }
+      try (JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+        json.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        json.setRootValueSeparator(null);
+        String lastPk = null;
+        while (! heads.isEmpty()) {
+          Row row = heads.poll();
+          String pk = row.sortValues[sortKeys.size() - 1];
+          if (! pk.equals(lastPk)) {
+            if (row.json) {
+              QueryExecutor.writeJson(json, row.value);
+            } else {
+              json.writeString(row.value);
+            }
+            json.writeRaw('\n');
+            rows++;
+            lastPk = pk;
+          }
+          addHead(heads, row.queue);
+        }
+        json.flush();
+      }
+    } finally {
+      for (Thread thread : threads) {
+        thread.interrupt();
+      }
+    }
+    ExecutionStats stats = new ExecutionStats(rows, System.nanoTime() - start);
+    logger.log(Level.INFO, "{0} from {1} branches", new Object[] {stats, fanOut.getWheres().size()});
+    return stats;
+  }
+
+  private static String branchSql(String tableName, String column, String where, SqlFanOut fanOut) {
+    StringBuilder sql = new StringBuilder("SELECT ");
+    for (SqlFanOut.SortKey sortKey : fanOut.getSortKeys()) {
+      sql.append(sortKey.getExpression()).append(", ");
+    }
+    return sql.append(column).append(" FROM ").append(tableName)
+        .append(" WHERE ").append(where)
+        .append(" ORDER BY ").append(fanOut.getOrderBy()).toString();
+  }
+
+  /**
+   * Take the next row of the queue and add it to heads unless the branch has ended.
+   */
+  private static void addHead(PriorityQueue<Row> heads, BlockingQueue<Row> queue)
+      throws SQLException, InterruptedIOException {
+    Row row;
+    try {
+      row = queue.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    if (row.exception instanceof SQLException) {
+      throw (SQLException) row.exception;
+    }
+    if (row.exception instanceof RuntimeException) {
+      throw (RuntimeException) row.exception;
+    }
+    if (row.exception != null) {
+      throw (Error) row.exception;
+    }
+    if (! row.isEnd()) {
+      heads.add(row);
+    }
+  }
+
+  /**
+   * Run the branch query and put its rows into the queue, followed by the end or the failure.
+   * Any failure must end the branch, otherwise the merge waits forever.
+   */
+  @SuppressWarnings("squid:S1181")  // suppress "Throwable and Error should not be caught"
+  private void fetch(String sql, int keys, BlockingQueue<Row> queue) {
+    try {
+      Throwable failure = null;
+      try {
+        fetchRows(sql, keys, queue);
+      } catch (InterruptedException e) {
+        throw e;
+      } catch (Throwable e) {
+        failure = e;
+      }
+      queue.put(new Row(queue, null, null, false, failure));
+    } catch (InterruptedException e) {
+      // the merge has stopped
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void fetchRows(String sql, int keys, BlockingQueue<Row> queue)
+      throws SQLException, InterruptedException {
+    try (Connection connection = dataSource.getConnection()) {
+      boolean autoCommit = connection.getAutoCommit();
+      connection.setAutoCommit(false);
+      try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+        statement.setFetchSize(fetchSize);
+        try (ResultSet resultSet = statement.executeQuery(sql)) {
+          boolean json = QueryExecutor.isJson(resultSet.getMetaData(), keys + 1);
+          while (resultSet.next()) {
+            String [] sortValues = new String [keys];
+            for (int i = 0; i < keys; i++) {
+              sortValues[i] = resultSet.getString(i + 1);
+            }
+            queue.put(new Row(queue, sortValues, resultSet.getString(keys + 1), json, null));
+          }
+        }
+      } finally {
+        // read only, nothing to commit
+        connection.rollback();
+        connection.setAutoCommit(autoCommit);
+      }
+    }
+  }
+
+  /**
+   * @return the text comparator for the default collation of the database, it is read on first use
+   */
+  private synchronized Comparator<String> textComparator() throws SQLException {
+    if (textComparator == null) {
+      try (Connection connection = dataSource.getConnection();
+          Statement statement = connection.createStatement();
+          ResultSet resultSet = statement.executeQuery(
+              "SELECT datcollate FROM pg_database WHERE datname = current_database()")) {
+        textComparator = textComparator(resultSet.next() ? resultSet.getString(1) : "C");
+      }
+    }
+    return textComparator;
+  }
+
+  /**
+   * Comparator that sorts text like the PostgreSQL collation. "C" and "POSIX" compare the UTF-8 bytes,
+   * any other collation like "en_US.UTF-8" uses the java.text.Collator of the locale; like a deterministic
+   * PostgreSQL collation it breaks ties by comparing the bytes.
+   * <p>
+   * The Collator of the JVM and the collation of the operating system that the database uses may
+   * differ in details like the order of punctuation; use a "C" collation database for an exact merge.
+   *
+   * @param collation  the collation name, for example datcollate of pg_database
+   * @return the comparator
+   */
+  public static Comparator<String> textComparator(String collation) {
+    String name = collation.split("[.@]", 2)[0];
+    if (name.isEmpty() || "C".equalsIgnoreCase(name) || "POSIX".equalsIgnoreCase(name)) {
+      return FanOutExecutor::compareCodePoints;
+    }
+    Collator collator = Collator.getInstance(Locale.forLanguageTag(name.replace('_', '-')));
+    return (a, b) -> {
+      int c = collator.compare(a, b);
+      return c != 0 ? c : compareCodePoints(a, b);
+    };
+  }
+
+  private static Comparator<Row> comparator(List<SqlFanOut.SortKey> sortKeys, Comparator<String> text) {
+    return (a, b) -> {
+      for (int i = 0; i < sortKeys.size(); i++) {
+        SqlFanOut.SortKey sortKey = sortKeys.get(i);
+        int c = compare(sortKey.getType(), a.sortValues[i], b.sortValues[i], text);
+        if (c != 0) {
+          return sortKey.isDescending() ? -c : c;
+        }
+      }
+      return 0;
+    };
+  }
+
+  /**
+   * Compare like PostgreSQL: NULL after any value when ascending, ids by their bytes, text and
+   * JSONB strings using the text comparator, JSONB null &lt; string &lt; number &lt; boolean &lt; array &lt; object.
+   */
+  static int compare(SqlFanOut.SortKeyType type, String a, String b, Comparator<String> text) {
+    if (a == null || b == null) {
+      if (a == null && b == null) {
+        return 0;
+      }
+      return a == null ? 1 : -1;
+    }
+    if (type == SqlFanOut.SortKeyType.ID) {
+      return compareCodePoints(a, b);
+    }
+    if (type == SqlFanOut.SortKeyType.TEXT) {
+      return text.compare(a, b);
+    }
+    int c = Integer.compare(jsonbTypeRank(a), jsonbTypeRank(b));
+    if (c != 0) {
+      return c;
+    }
+    if (Cql2SqlUtil.isPostgresNumber(a) && Cql2SqlUtil.isPostgresNumber(b)) {
+      return new BigDecimal(a).compareTo(new BigDecimal(b));
+    }
+    return text.compare(a, b);
+  }
+
+  private static int jsonbTypeRank(String json) {
+    switch (json.isEmpty() ? ' ' : json.charAt(0)) {
+    case 'n':
+      return 0;
+    case '"':
+      return 1;
+    case 't':
+    case 'f':
+      return 3;
+    case '[':
+      return 4;
+    case '{':
+      return 5;
+    default:
+      return 2;
+    }
+  }
+
+  /**
+   * Compare by Unicode code points, this is the byte order of UTF-8 and of the "C" collation.
+   */
+  private static int compareCodePoints(String a, String b) {
+    int i = 0;
+    while (i < a.length() && i < b.length()) {
+      int ca = a.codePointAt(i);
+      int cb = b.codePointAt(i);
+      if (ca != cb) {
+        return Integer.compare(ca, cb);
+      }
+      i += Character.charCount(ca);
+    }
+    return Integer.compare(a.length(), b.length());
+  }
+}
@@ -0,0 +1,230 @@
+package org.folio.cql2pgjson.executor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import org.folio.cql2pgjson.model.SqlSelect;
+
+/**
+ * Run an SQL query over JDBC and stream the rows as NDJSON (newline delimited JSON), one JSON value per line.
+ * <p>
+ * The query runs with autocommit off and a fetch size so that the PostgreSQL JDBC driver uses a
+ * server-side cursor and keeps only fetchSize rows in memory. The rows are written to the OutputStream
+ * as they are fetched; if the consumer is slow the writes block and the next rows are fetched later.
+ * <p>
+ * Example:
+ * <pre>
+ * SqlSelect sqlSelect = new CQL2PgJSON("users.jsonb").toSql("name=Jo sortBy name");
+ * ExecutionStats stats = new QueryExecutor(connection).stream("users", "jsonb", sqlSelect, System.out);
+ * </pre>
+ */
+public class QueryExecutor {
+  private static final Logger logger = Logger.getLogger(QueryExecutor.class.getName());
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private final Connection connection;
+  private int fetchSize = 1000;
+  private Consumer<ExecutionStats> progressListener;
+
+  /**
+   * @param connection  the JDBC connection to use; its autocommit mode is restored after each query
+   */
+  public QueryExecutor(Connection connection) {
+    this.connection = connection;
+  }
+
+  /**
+   * @return number of rows to fetch from the server-side cursor at a time
+   */
+  public int getFetchSize() {
+    return fetchSize;
+  }
+
+  /**
+   * @param fetchSize  number of rows to fetch from the server-side cursor at a time, default is 1000
+   * @throws IllegalArgumentException if fetchSize is less than 1
+   */
+  public void setFetchSize(int fetchSize) {
+    if (fetchSize < 1) {
+      throw new IllegalArgumentException("fetchSize must be at least 1: " + fetchSize);
+    }
+    this.fetchSize = fetchSize;
+  }
+
+  /**
+   * @param progressListener  called after each fetchSize rows with the rows and the time so far, null for none
+   */
+  public void setProgressListener(Consumer<ExecutionStats> progressListener) {
+    this.progressListener = progressListener;
+  }
+
+  /**
+   * Stream the column of the matching records.
+   *
+   * @param tableName  the table to query
+   * @param column  the column to output, for example the JSONB column
+   * @param sqlSelect  WHERE and ORDER BY clause, for example from CQL2PgJSON.toSql(String)
+   * @param out  where to write the NDJSON to
+   * @return number of rows and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   */
+  public ExecutionStats stream(String tableName, String column, SqlSelect sqlSelect, OutputStream out)
+      throws SQLException, IOException {
+    String sql = "SELECT " + column + " FROM " + tableName;
+    if (! sqlSelect.toString().isEmpty()) {
+      sql += " " + sqlSelect;
+    }
+    return stream(sql, out);
+  }
+
+  /**
+   * Stream the rows of the SQL query, one JSON value per line.
+   * <p>
+   * If the query returns a single json or jsonb column each line is that value, otherwise
+   * each line is a JSON object with the column labels as keys.
+   *
+   * @param sql  the SQL query
+   * @param out  where to write the NDJSON to, it is flushed but not closed
+   * @return number of rows and elapsed time
+   * @throws SQLException on database failure
+   * @throws IOException on write failure
+   */
+  public ExecutionStats stream(String sql, OutputStream out) throws SQLException, IOException {
+    long start = System.nanoTime();
+    long rows = 0;
+    boolean autoCommit = connection.getAutoCommit();
+    connection.setAutoCommit(false);
+    try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      statement.setFetchSize(fetchSize);
+      try (ResultSet resultSet = statement.executeQuery(sql);
+          JsonGenerator json = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+        json.configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+        json.setRootValueSeparator(null);
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        boolean singleJson = metaData.getColumnCount() == 1 && isJson(metaData, 1);
+        while (resultSet.next()) {
+          if (singleJson) {
+            writeJson(json, resultSet.getString(1));
+          } else {
+            writeObject(json, resultSet, metaData);
+          }
+          json.writeRaw('\n');
+          rows++;
+          if (rows % fetchSize == 0 && progressListener != null) {
+            json.flush();
+            progressListener.accept(new ExecutionStats(rows, System.nanoTime() - start));
+          }
+        }
+        json.flush();
+      }
+      connection.commit();
+    } catch (SQLException|IOException|RuntimeException e) {
+      try {
+        connection.rollback();
+      } catch (SQLException rollbackException) {
+        e.addSuppressed(rollbackException);
+      }
+      throw e;
+    } finally {
+      connection.setAutoCommit(autoCommit);
+    }
+    ExecutionStats stats = new ExecutionStats(rows, System.nanoTime() - start);
+    logger.log(Level.INFO, "{0}: {1}", new Object[] {stats, sql});
+    return stats;
+  }
+
+  static boolean isJson(ResultSetMetaData metaData, int column) throws SQLException {
+    String typeName = metaData.getColumnTypeName(column);
+    return "json".equalsIgnoreCase(typeName) || "jsonb".equalsIgnoreCase(typeName);
+  }
+
+  static void writeJson(JsonGenerator json, String value) throws IOException {
+    if (value == null) {
+      json.writeNull();
+    } else {
+      json.writeRawValue(value);
+    }
+  }
+
+  private static void writeObject(JsonGenerator json, ResultSet resultSet, ResultSetMetaData metaData)
+      throws SQLException, IOException {
+    json.writeStartObject();
+    for (int i = 1; i <= metaData.getColumnCount(); i++) {
+      json.writeFieldName(metaData.getColumnLabel(i));
+      writeValue(json, resultSet, metaData, i);
+    }
+    json.writeEndObject();
+  }
+
+  static void writeValue(JsonGenerator json, ResultSet resultSet, ResultSetMetaData metaData, int i)
+      throws SQLException, IOException {
+    if (isJson(metaData, i)) {
+      writeJson(json, resultSet.getString(i));
+      return;
+    }
+    switch (metaData.getColumnType(i)) {
+    case Types.BIGINT:
+    case Types.INTEGER:
+    case Types.SMALLINT:
+    case Types.TINYINT:
+      long l = resultSet.getLong(i);
+      if (resultSet.wasNull()) {
+        json.writeNull();
+      } else {
+        json.writeNumber(l);
+      }
+      return;
+    case Types.NUMERIC:
+    case Types.DECIMAL:
+      BigDecimal decimal = resultSet.getBigDecimal(i);
+      if (decimal == null) {
+        json.writeNull();
+      } else {
+        json.writeNumber(decimal);
+      }
+      return;
+    case Types.REAL:
+    case Types.FLOAT:
+    case Types.DOUBLE:
+      double d = resultSet.getDouble(i);
+      if (resultSet.wasNull()) {
+        json.writeNull();
+      } else {
+        json.writeNumber(d);
+      }
+      return;
+    case Types.BIT:
+    case Types.BOOLEAN:
+      boolean b = resultSet.getBoolean(i);
+      if (resultSet.wasNull()) {
+        json.writeNull();
+      } else {
+        json.writeBoolean(b);
+      }
+      return;
+    default:
+      String string = resultSet.getString(i);
+      if (string == null) {
+        json.writeNull();
+      } else {
+        json.writeString(string);
+      }
+      return;
+    }
+  }
+}
@@ -0,0 +1,25 @@
+package org.folio.cql2pgjson.model;
+
+/**
+ * How to count the records matching a query.
+ */
+public enum CountStrategy {
+  /** count(*) of all matching records */
+  EXACT,
+  /** count(*) of at most threshold matching records */
+  CAPPED,
+  /** row estimate of the query planner, using EXPLAIN */
+  ESTIMATED;
+
+  /**
+   * Pick the strategy for the planner's row estimate: EXACT if the estimate is at most the threshold,
+   * ESTIMATED otherwise.
+   *
+   * @param estimate  the planner's row estimate, see {@link #ESTIMATED}
+   * @param threshold  maximum number of records to count exactly
+   * @return the strategy
+   */
+  public static CountStrategy of(long estimate, long threshold) {
+    return estimate <= threshold ? EXACT : ESTIMATED;
+  }
+}
@@ -1,5 +1,6 @@
 package org.folio.cql2pgjson.model;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import org.folio.cql2pgjson.exception.CQLFeatureUnsupportedException;
@@ -14,6 +15,7 @@ public class CqlModifiers {
   private CqlAccents cqlAccents = CqlAccents.IGNORE_ACCENTS;
   private CqlTermFormat cqlTermFormat = CqlTermFormat.STRING;
   private CqlMasking cqlMasking = CqlMasking.MASKED;
+  private List<Modifier> relationModifiers = new ArrayList<>();
 
   public CqlModifiers(CQLTermNode node) throws CQLFeatureUnsupportedException {
     readModifiers(node.getRelation().getModifiers());
@@ -26,6 +28,7 @@ public class CqlModifiers {
   /**
    * Read the modifiers and write the last for each enum into the enum variable.
    * Default is ascending, ignoreCase, ignoreAccents and masked.
+   * Modifiers starting with @ are collected into the relation modifiers list.
    *
    * @param modifiers where to read from
    * @throws QueryValidationException
@@ -62,6 +65,10 @@ public class CqlModifiers {
         setCqlMasking(CqlMasking.MASKED);
         break;
       default:
+        if (m.getType().startsWith("@")) {
+          relationModifiers.add(m);
+          break;
+        }
         throw new CQLFeatureUnsupportedException("CQL: Unsupported modifier " + m.getType());
       }
     }
@@ -106,4 +113,12 @@ public class CqlModifiers {
   public void setCqlMasking(CqlMasking cqlMasking) {
     this.cqlMasking = cqlMasking;
   }
+
+  /**
+   * @return the modifiers starting with @ that select the keys of array elements, for example
+   *   @value and @identifierTypeId=123 from =/@value/@identifierTypeId=123
+   */
+  public List<Modifier> getRelationModifiers() {
+    return relationModifiers;
+  }
 }
@@ -0,0 +1,299 @@
+package org.folio.cql2pgjson.model;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.folio.cql2pgjson.util.Cql2SqlUtil;
+
+/**
+ * The values of a key that a query can match: a union of ranges. A range with lower bound equal
+ * to the upper bound is a point, a null bound is unbounded.
+ * <p>
+ * Values are compared as numbers if both are numbers, and as Java Strings otherwise. This is
+ * the order of lower case UUIDs and of ISO dates, a router should not rely on it for text
+ * that is sorted by a database collation.
+ * <p>
+ * Immutable.
+ */
+public final class KeyConstraint {
+  /** Any value, no constraint. */
+  public static final KeyConstraint ALL =
+      new KeyConstraint(Collections.singletonList(new Range(null, true, null, true)));
+  /** No value, the query cannot match. */
+  public static final KeyConstraint NONE = new KeyConstraint(Collections.emptyList());
+
+  /**
+   * A range of values.
+   */
+  public static final class Range {
+    private final String lo;
+    private final boolean loInclusive;
+    private final String hi;
+    private final boolean hiInclusive;
+
+    private Range(String lo, boolean loInclusive, String hi, boolean hiInclusive) {
+      this.lo = lo;
+      this.loInclusive = lo == null || loInclusive;
+      this.hi = hi;
+      this.hiInclusive = hi == null || hiInclusive;
+    }
+
+    /**
+     * @return the lower bound, or null if unbounded
+     */
+    public String getLo() {
+      return lo;
+    }
+
+    /**
+     * @return true if the lower bound is part of the range
+     */
+    public boolean isLoInclusive() {
+      return loInclusive;
+    }
+
+    /**
+     * @return the upper bound, or null if unbounded
+     */
+    public String getHi() {
+      return hi;
+    }
+
+    /**
+     * @return true if the upper bound is part of the range
+     */
+    public boolean isHiInclusive() {
+      return hiInclusive;
+    }
+
+    /**
+     * @return true if the range contains a single value
+     */
+    public boolean isPoint() {
+      return lo != null && hi != null && compare(lo, hi) == 0;
+    }
+
+    /**
+     * @param value  the value to test
+     * @return true if value is in this range
+     */
+    public boolean contains(String value) {
+      if (lo != null) {
+        int c = compare(lo, value);
+        if (c > 0 || (c == 0 && ! loInclusive)) {
+          return false;
+        }
+      }
+      if (hi != null) {
+        int c = compare(value, hi);
+        if (c > 0 || (c == 0 && ! hiInclusive)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private boolean isEmpty() {
+      if (lo == null || hi == null) {
+        return false;
+      }
+      int c = compare(lo, hi);
+      return c > 0 || (c == 0 && ! (loInclusive && hiInclusive));
+    }
+
+    private Range and(Range other) {
+      String newLo = lo;
+      boolean newLoInclusive = loInclusive;
+      if (newLo == null || (other.lo != null && compare(other.lo, newLo) >= 0)) {
+        boolean same = newLo != null && compare(other.lo, newLo) == 0;
+        newLo = other.lo;
+        newLoInclusive = same ? loInclusive && other.loInclusive : other.loInclusive;
+      }
+      String newHi = hi;
+      boolean newHiInclusive = hiInclusive;
+      if (newHi == null || (other.hi != null && compare(other.hi, newHi) <= 0)) {
+        boolean same = newHi != null && compare(other.hi, newHi) == 0;
+        newHi = other.hi;
+        newHiInclusive = same ? hiInclusive && other.hiInclusive : other.hiInclusive;
+      }
+      return new Range(newLo, newLoInclusive, newHi, newHiInclusive);
+    }
+
+    @Override
+    public String toString() {
+      if (isPoint()) {
+        return lo;
+      }
+      return (loInclusive ? "[" : "(") + (lo == null ? "" : lo) + ","
+          + (hi == null ? "" : hi) + (hiInclusive ? "]" : ")");
+    }
+  }
+
+  private final List<Range> ranges;
+
+  private KeyConstraint(List<Range> ranges) {
+    this.ranges = Collections.unmodifiableList(ranges);
+  }
+
+  /**
+   * The constraint of a comparison key comparator value.
+   *
+   * @param comparator  one of = &lt; &gt; &lt;= &gt;=
+   * @param value  the value to compare with
+   * @return the constraint
+   * @throws IllegalArgumentException if comparator is unknown or value is null
+   */
+  public static KeyConstraint of(String comparator, String value) {
+    if (value == null) {
+      throw new IllegalArgumentException("value must not be null");
+    }
+    switch (comparator) {
+    case "=":
+      return range(value, true, value, true);
+    case "<":
+      return range(null, true, value, false);
+    case "<=":
+      return range(null, true, value, true);
+    case ">":
+      return range(value, false, null, true);
+    case ">=":
+      return range(value, true, null, true);
+    default:
+      throw new IllegalArgumentException("Unknown comparator: " + comparator);
+    }
+  }
+
+  private static KeyConstraint range(String lo, boolean loInclusive, String hi, boolean hiInclusive) {
+    return new KeyConstraint(Collections.singletonList(new Range(lo, loInclusive, hi, hiInclusive)));
+  }
+
+  /**
+   * @param other  the constraint to intersect with
+   * @return the values that match both this and the other constraint
+   */
+  public KeyConstraint and(KeyConstraint other) {
+    if (isUnbounded()) {
+      return other;
+    }
+    if (other.isUnbounded()) {
+      return this;
+    }
+    List<Range> result = new ArrayList<>();
+    for (Range range : ranges) {
+      for (Range otherRange : other.ranges) {
+        Range intersection = range.and(otherRange);
+        if (! intersection.isEmpty()) {
+          result.add(intersection);
+        }
+      }
+    }
+    return new KeyConstraint(result);
+  }
+
+  /**
+   * @param other  the constraint to unite with
+   * @return the values that match this or the other constraint
+   */
+  public KeyConstraint or(KeyConstraint other) {
+    if (isUnbounded() || other.isUnbounded()) {
+      return ALL;
+    }
+    List<Range> result = new ArrayList<>(ranges);
+    result.addAll(other.ranges);
+    return new KeyConstraint(result);
+  }
+
+  /**
+   * @return true if any value may match
+   */
+  public boolean isUnbounded() {
+    for (Range range : ranges) {
+      if (range.lo == null && range.hi == null) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return true if no value can match
+   */
+  public boolean isEmpty() {
+    return ranges.isEmpty();
+  }
+
+  /**
+   * @return true if the constraint is a finite set of values, see {@link #getPoints()}
+   */
+  public boolean isPointSet() {
+    for (Range range : ranges) {
+      if (! range.isPoint()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the values if {@link #isPointSet()}, otherwise null
+   */
+  public List<String> getPoints() {
+    if (! isPointSet()) {
+      return null;
+    }
+    List<String> points = new ArrayList<>();
+    for (Range range : ranges) {
+      if (! points.contains(range.lo)) {
+        points.add(range.lo);
+      }
+    }
+    return points;
+  }
+
+  /**
+   * @return the ranges, unmodifiable, may overlap
+   */
+  public List<Range> getRanges() {
+    return ranges;
+  }
+
+  /**
+   * @param value  the value to test
+   * @return true if value may match
+   */
+  public boolean contains(String value) {
+    for (Range range : ranges) {
+      if (range.contains(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int compare(String a, String b) {
+    if (Cql2SqlUtil.isPostgresNumber(a) && Cql2SqlUtil.isPostgresNumber(b)) {
+      return new BigDecimal(a).compareTo(new BigDecimal(b));
+    }
+    return a.compareTo(b);
+  }
+
+  @Override
+  public String toString() {
+    if (isUnbounded()) {
+      return "ALL";
+    }
+    if (isEmpty()) {
+      return "NONE";
+    }
+    StringBuilder s = new StringBuilder();
+    for (Range range : ranges) {
+      if (s.length() > 0) {
+        s.append(" OR ");
+      }
+      s.append(range);
+    }
+    return s.toString();
+  }
+}
@@ -0,0 +1,111 @@
+package org.folio.cql2pgjson.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query split into independent WHERE clauses (branches) whose results are merged and deduplicated
+ * by the primary key, and the ORDER BY keys that all branches share.
+ * <p>
+ * The last sort key is the primary key so that the order is total and a record matched by several
+ * branches occurs in adjacent positions of the merged result.
+ */
+public class SqlFanOut {
+  /**
+   * How to compare the values of a sort key.
+   */
+  public enum SortKeyType {
+    /** compare UUIDs, the primary key */
+    ID,
+    /** compare text using the collation of the database */
+    TEXT,
+    /** compare JSONB values, numbers numerically */
+    NUMBER
+  }
+
+  /**
+   * An ORDER BY expression.
+   */
+  public static class SortKey {
+    private final String expression;
+    private final boolean descending;
+    private final SortKeyType type;
+
+    /**
+     * @param expression  SQL expression to sort by
+     * @param descending  true for DESC, false for ASC
+     * @param type  how to compare the values
+     */
+    public SortKey(String expression, boolean descending, SortKeyType type) {
+      this.expression = expression;
+      this.descending = descending;
+      this.type = type;
+    }
+
+    /**
+     * @return SQL expression to sort by
+     */
+    public String getExpression() {
+      return expression;
+    }
+
+    /**
+     * @return true for DESC, false for ASC
+     */
+    public boolean isDescending() {
+      return descending;
+    }
+
+    /**
+     * @return how to compare the values
+     */
+    public SortKeyType getType() {
+      return type;
+    }
+  }
+
+  private final List<String> wheres;
+  private final List<SortKey> sortKeys;
+
+  /**
+   * @param wheres  WHERE clause of each branch, without "WHERE" keyword
+   * @param sortKeys  ORDER BY keys, the last is the primary key
+   */
+  public SqlFanOut(List<String> wheres, List<SortKey> sortKeys) {
+    this.wheres = Collections.unmodifiableList(new ArrayList<>(wheres));
+    this.sortKeys = Collections.unmodifiableList(new ArrayList<>(sortKeys));
+  }
+
+  /**
+   * @return WHERE clause of each branch, without "WHERE" keyword
+   */
+  public List<String> getWheres() {
+    return wheres;
+  }
+
+  /**
+   * @return ORDER BY keys, the last is the primary key
+   */
+  public List<SortKey> getSortKeys() {
+    return sortKeys;
+  }
+
+  /**
+   * @return the primary key column
+   */
+  public String getPkColumnName() {
+    return sortKeys.get(sortKeys.size() - 1).getExpression();
+  }
+
+  /**
+   * @return the ORDER BY clause without "ORDER BY" keyword
+   */
+  public String getOrderBy() {
+    List<String> order = new ArrayList<>();
+    for (SortKey sortKey : sortKeys) {
+      order.add(sortKey.getExpression() + (sortKey.isDescending() ? " DESC" : ""));
+    }
+    return String.join(", ", order);
+  }
+}
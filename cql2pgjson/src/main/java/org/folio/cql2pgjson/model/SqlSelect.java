@@ -3,11 +3,12 @@ package org.folio.cql2pgjson.model;
 import org.apache.commons.lang3.StringUtils;
 
 /**
- * Container for the WHERE, ORDER BY, LIMIT and OFFSET clause of a SQL SELECT query.
+ * Container for the TABLESAMPLE, WHERE, ORDER BY, LIMIT and OFFSET clause of a SQL SELECT query.
  */
 public class SqlSelect {
   private final String where;
   private final String orderBy;
+  private final TableSample tableSample;
 
   /**
    * Set the values. A null value is converted to an empty String.
@@ -15,8 +16,19 @@ public class SqlSelect {
    * @param orderBy  the ORDER BY clause without "ORDER BY" keyword
    */
   public SqlSelect(String where, String orderBy) {
+    this(where, orderBy, null);
+  }
+
+  /**
+   * Set the values. A null where or orderBy is converted to an empty String.
+   * @param where  the WHERE clause without "WHERE" keyword
+   * @param orderBy  the ORDER BY clause without "ORDER BY" keyword
+   * @param tableSample  the TABLESAMPLE clause, or null for none
+   */
+  public SqlSelect(String where, String orderBy, TableSample tableSample) {
     this.where = StringUtils.defaultString(where);
     this.orderBy = StringUtils.defaultString(orderBy);
+    this.tableSample = tableSample;
   }
 
   /**
@@ -34,12 +46,26 @@ public class SqlSelect {
   }
 
   /**
-   * Concatenation of getWhere() and getOrderBy() and including "WHERE" and "ORDER BY" keywords if needed.
+   * @return the TABLESAMPLE clause, or null if none.
+   */
+  public TableSample getTableSample() {
+    return tableSample;
+  }
+
+  /**
+   * Concatenation of getTableSample(), getWhere() and getOrderBy() and including "WHERE" and "ORDER BY"
+   * keywords if needed. It can be appended to "SELECT ... FROM table".
    */
   @Override
   public String toString() {
     StringBuilder b = new StringBuilder();
+    if (tableSample != null) {
+      b.append(tableSample);
+    }
     if (! where.isEmpty()) {
+      if (b.length() > 0) {
+        b.append(' ');
+      }
       b.append("WHERE ").append(where);
     }
     if (! orderBy.isEmpty()) {
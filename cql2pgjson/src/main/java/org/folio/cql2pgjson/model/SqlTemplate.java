@@ -0,0 +1,70 @@
+package org.folio.cql2pgjson.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * WHERE and ORDER BY clause with a placeholder for the database schema name,
+ * for example the tenant schema diku_mod_users. The placeholder is searched once,
+ * {@link #fill(String)} only concatenates.
+ */
+public class SqlTemplate {
+  /** the placeholder to use as schema name in the JSONB field name: ${schema}.users.jsonb */
+  public static final String SCHEMA_PLACEHOLDER = "${schema}";
+
+  private static final Pattern SCHEMA_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+  /** parts of the WHERE clause between the placeholders */
+  private final List<String> where;
+  /** parts of the ORDER BY clause between the placeholders */
+  private final List<String> orderBy;
+
+  /**
+   * @param sqlSelect  WHERE and ORDER BY clause where each SCHEMA_PLACEHOLDER outside of a
+   *     single quoted string literal is a schema name
+   */
+  public SqlTemplate(SqlSelect sqlSelect) {
+    where = split(sqlSelect.getWhere());
+    orderBy = split(sqlSelect.getOrderBy());
+  }
+
+  /**
+   * @return sql split at each SCHEMA_PLACEHOLDER that is not within a single quoted string literal
+   */
+  private static List<String> split(String sql) {
+    List<String> parts = new ArrayList<>();
+    boolean quoted = false;
+    int start = 0;
+    int i = 0;
+    while (i < sql.length()) {
+      if (! quoted && sql.startsWith(SCHEMA_PLACEHOLDER, i)) {
+        parts.add(sql.substring(start, i));
+        i += SCHEMA_PLACEHOLDER.length();
+        start = i;
+        continue;
+      }
+      if (sql.charAt(i) == '\'') {
+        // a doubled '' within a literal toggles twice
+        quoted = ! quoted;
+      }
+      i++;
+    }
+    parts.add(sql.substring(start));
+    return parts;
+  }
+
+  /**
+   * Replace the placeholders.
+   *
+   * @param schema  the schema name, for example diku_mod_users
+   * @return WHERE and ORDER BY clause for that schema
+   * @throws IllegalArgumentException if schema is not a valid unquoted SQL identifier
+   */
+  public SqlSelect fill(String schema) {
+    if (schema == null || ! SCHEMA_NAME.matcher(schema).matches()) {
+      throw new IllegalArgumentException("Invalid schema name: " + schema);
+    }
+    return new SqlSelect(String.join(schema, where), String.join(schema, orderBy));
+  }
+}
@@ -0,0 +1,102 @@
+package org.folio.cql2pgjson.model;
+
+import java.math.BigDecimal;
+
+/**
+ * The TABLESAMPLE clause of a SELECT query: Read a random fraction of the table only
+ * to get a fast approximate result of an exploratory query.
+ * <p>
+ * SYSTEM samples whole table blocks and is fastest, BERNOULLI samples single rows and is
+ * more even but reads the complete table. See
+ * <a href="https://www.postgresql.org/docs/current/sql-select.html#SQL-FROM">https://www.postgresql.org/docs/current/sql-select.html#SQL-FROM</a>.
+ * <p>
+ * Immutable.
+ */
+public final class TableSample {
+  /**
+   * The sampling method.
+   */
+  public enum Method {
+    /** sample table blocks, each block is read completely or not at all */
+    SYSTEM,
+    /** sample rows, all blocks are read */
+    BERNOULLI
+  }
+
+  private final Method method;
+  private final double percent;
+  private final Long seed;
+
+  /**
+   * @param method  the sampling method
+   * @param percent  the percentage of the table to sample, greater than 0 and at most 100
+   * @param seed  seed for REPEATABLE to get the same sample on each run while the table
+   *     does not change, null for a new random sample on each run
+   * @throws IllegalArgumentException if method is null or percent is out of range
+   */
+  public TableSample(Method method, double percent, Long seed) {
+    if (method == null) {
+      throw new IllegalArgumentException("method must not be null");
+    }
+    if (! (percent > 0 && percent <= 100)) {
+      throw new IllegalArgumentException("percent must be greater than 0 and at most 100: " + percent);
+    }
+    this.method = method;
+    this.percent = percent;
+    this.seed = seed;
+  }
+
+  /**
+   * @return the sampling method
+   */
+  public Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the percentage of the table to sample
+   */
+  public double getPercent() {
+    return percent;
+  }
+
+  /**
+   * @return the seed for REPEATABLE, or null if none
+   */
+  public Long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Scale a count of the sample to the complete table.
+   *
+   * @param sampleCount  number of matching records in the sample
+   * @return estimated number of matching records in the table
+   */
+  public long scale(long sampleCount) {
+    return Math.round(sampleCount * 100 / percent);
+  }
+
+  private String percentLiteral() {
+    return BigDecimal.valueOf(percent).stripTrailingZeros().toPlainString();
+  }
+
+  /**
+   * SQL version of {@link #scale(long)}.
+   *
+   * @param sampleCount  SQL expression of the number of matching records in the sample, for example count(*)
+   * @return SQL expression of the estimated number of matching records in the table
+   */
+  public String scaleSql(String sampleCount) {
+    return "round(" + sampleCount + " * 100.0 / " + percentLiteral() + ")::bigint";
+  }
+
+  /**
+   * The clause, for example TABLESAMPLE SYSTEM (1) REPEATABLE (42).
+   */
+  @Override
+  public String toString() {
+    return "TABLESAMPLE " + method + " (" + percentLiteral() + ")"
+        + (seed == null ? "" : " REPEATABLE (" + seed + ")");
+  }
+}
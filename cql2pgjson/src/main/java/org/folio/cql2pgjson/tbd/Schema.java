@@ -22,6 +22,7 @@ public class Schema {
   /* Private use variables and object structures*/
   private static final String PROPERTIES = "properties";
   private static final String TYPE = "type";
+  private static final String FORMAT = "format";
   private static final String ITEMS = "items";
   private static final String REF = "$ref";
   private static final String ITEMS_USAGE_MESSAGE
@@ -29,20 +30,30 @@ public class Schema {
   private static final int MIN_DEPTH = 4;
 
   /**
-   * Container for path and RAML type of a field.
+   * Container for path, RAML type and format of a field.
    */
   public static class Field {
 
     private final String path;
     private final String type;
+    private final String format;
 
     public Field(String path, String type) {
+      this(path, type, null);
+    }
+
+    public Field(String path, String type, String format) {
       this.path = path;
       if (type == null) {
         this.type = "";
       } else {
         this.type = type;
       }
+      if (format == null) {
+        this.format = "";
+      } else {
+        this.format = format;
+      }
     }
 
     /**
@@ -63,6 +74,15 @@ public class Schema {
     public String getType() {
       return type;
     }
+
+    /**
+     * JSON schema format like date-time, date, uri, ... "" for unknown.
+     *
+     * @return the format.
+     */
+    public String getFormat() {
+      return format;
+    }
   }
 
   private String schemaJsonString = null;
@@ -82,7 +102,7 @@ public class Schema {
     jsonFactory.createParser(schemaJson);
   }
 
-  private Field matchLeaf(Field field, String index, String iType, Deque<String> path, String type)
+  private Field matchLeaf(Field field, String index, String iType, Deque<String> path, String type, String format)
       throws QueryValidationException {
 
     String pathP = String.join(".", path);
@@ -106,7 +126,7 @@ public class Schema {
     if (iType != null && !iType.endsWith(type)) {
       return null;
     }
-    return new Field(pathP, type);
+    return new Field(pathP, type, format);
   }
 
   private Field recurseItems(String index, String iType, Deque<String> path, JsonParser jp)
@@ -137,7 +157,7 @@ public class Schema {
         }
       }
     }
-    field = matchLeaf(field, index, iType, path, type);
+    field = matchLeaf(field, index, iType, path, type, null);
     return field;
   }
 
@@ -182,6 +202,7 @@ public class Schema {
     String fieldName = jp.getCurrentName();
     path.addLast(fieldName);
     String type = null;
+    String format = null;
     while (!jp.isClosed()) {
       JsonToken jt = jp.nextToken();
       if (jt == null || jt.equals(JsonToken.END_OBJECT)) {
@@ -196,6 +217,10 @@ public class Schema {
             jp.nextToken();
             type = jp.getValueAsString();
             break;
+          case FORMAT:
+            jp.nextToken();
+            format = jp.getValueAsString();
+            break;
           case ITEMS:
             field = recurseItems(index, iType, path, jp);
             break;
@@ -208,7 +233,7 @@ public class Schema {
         }
       }
     }
-    field = matchLeaf(field, index, iType, path, type);
+    field = matchLeaf(field, index, iType, path, type, format);
     path.removeLast();
     return field;
   }
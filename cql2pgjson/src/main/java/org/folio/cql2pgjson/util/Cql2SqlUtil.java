@@ -1,5 +1,11 @@
 package org.folio.cql2pgjson.util;
 
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
@@ -21,6 +27,28 @@ public final class Cql2SqlUtil {
       + "(?:[eE][+-]?\\d+)?"
       );
 
+  /**
+   * ISO 8601 date with optional time and optional time zone offset, for example
+   * 2019-02-28 or 2019-02-28T16:40:00.000+0000
+   */
+  private static final Pattern isoDate = Pattern.compile(
+        "\\d{4}-\\d{2}-\\d{2}"
+      + "(?:[T ]\\d{2}:\\d{2}(?::\\d{2}(?:\\.\\d+)?)?"
+      +   "(?:Z|[+-]\\d{2}(?::?\\d{2})?)?"
+      + ")?"
+      );
+
+  /** isoDate with groups: date, hours and minutes, seconds, fraction, offset */
+  private static final Pattern isoDateParts = Pattern.compile(
+        "(\\d{4}-\\d{2}-\\d{2})"
+      + "(?:[T ](\\d{2}:\\d{2})(?::(\\d{2})(?:\\.(\\d+))?)?"
+      +   "(Z|[+-]\\d{2}(?::?\\d{2})?)?"
+      + ")?"
+      );
+
+  /** UTC timestamp format of the record metadata, the text order is the time order */
+  private static final DateTimeFormatter utcTimestamp = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'+0000'");
+
   private Cql2SqlUtil() {
     throw new UnsupportedOperationException("Cannot instantiate utility class.");
   }
@@ -164,6 +192,64 @@ public final class Cql2SqlUtil {
     return regexp.toString();
   }
 
+  /**
+   * Test if s contains a CQL masking character * ? or ^ that is not escaped by a backslash.
+   *
+   * @param s  CQL string without leading or trailing double quote
+   * @return true if s contains an unmasked * ? or ^, false otherwise
+   */
+  public static boolean hasCqlWildcard(String s) {
+    /** true if the previous character is an escaping backslash */
+    boolean backslash = false;
+    for (char c : s.toCharArray()) {
+      switch (c) {
+      case '\\':
+        backslash = ! backslash;
+        break;
+      case '*':
+      case '?':
+      case '^':
+        if (! backslash) {
+          return true;
+        }
+        backslash = false;
+        break;
+      default:
+        backslash = false;
+        break;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Convert a CQL string without masking characters to the plain string by removing
+   * the escaping backslashes.
+   *
+   * @param s  CQL string without leading or trailing double quote
+   * @return the plain string, not quoted for SQL
+   */
+  public static String cql2string(String s) {
+    StringBuilder string = new StringBuilder();
+    /** true if the previous character is an escaping backslash */
+    boolean backslash = false;
+    for (char c : s.toCharArray()) {
+      if (c == '\\' && ! backslash) {
+        backslash = true;
+        continue;
+      }
+      string.append(c);
+      backslash = false;
+    }
+
+    if (backslash) {
+      // a single backslash at the end is an error but we handle it gracefully matching one.
+      string.append('\\');
+    }
+
+    return string.toString();
+  }
+
   /**
    * Test if s for sure is a syntactically correct SQL number.
    * <p>
@@ -174,4 +260,78 @@ public final class Cql2SqlUtil {
   public static boolean isPostgresNumber(String s) {
     return postgresNumber.matcher(s).matches();
   }
+
+  /**
+   * Test if s is an ISO 8601 date with optional time and time zone offset like
+   * 2019-02-28 or 2019-02-28T16:40:00.000+0000 that Postgres can cast to date and timestamptz.
+   * @param s  String to test
+   * @return true if s is such a date, false otherwise
+   */
+  public static boolean isIsoDate(String s) {
+    return isoDate.matcher(s).matches();
+  }
+
+  /**
+   * Convert an ISO 8601 date with optional time and time zone offset, see {@link #isIsoDate(String)},
+   * into the UTC timestamp format of the record metadata like 2019-02-28T16:40:00.000+0000.
+   * Timestamps in this format compare as text like their instants.
+   * A missing time is midnight, a missing offset is UTC, the precision is milliseconds.
+   * @param s  the date to convert
+   * @return the timestamp
+   * @throws IllegalArgumentException if s is not an ISO 8601 date or not a valid date
+   */
+  public static String toUtcTimestamp(String s) {
+    Matcher matcher = isoDateParts.matcher(s);
+    if (! matcher.matches()) {
+      throw new IllegalArgumentException("Not an ISO 8601 date: " + s);
+    }
+    StringBuilder iso = new StringBuilder(matcher.group(1)).append('T')
+        .append(matcher.group(2) == null ? "00:00" : matcher.group(2))
+        .append(':').append(matcher.group(3) == null ? "00" : matcher.group(3));
+    if (matcher.group(4) != null) {
+      String fraction = matcher.group(4);
+      iso.append('.').append(fraction.length() > 9 ? fraction.substring(0, 9) : fraction);
+    }
+    String offset = matcher.group(5);
+    if (offset == null || "Z".equals(offset)) {
+      iso.append('Z');
+    } else {
+      String minutes = offset.length() == 3 ? "00" : offset.substring(offset.length() - 2);
+      iso.append(offset, 0, 3).append(':').append(minutes);
+    }
+    try {
+      return OffsetDateTime.parse(iso).withOffsetSameInstant(ZoneOffset.UTC).format(utcTimestamp);
+    } catch (DateTimeParseException e) {
+      throw new IllegalArgumentException("Invalid date: " + s, e);
+    }
+  }
+
+  /**
+   * The day of an ISO 8601 date without time, see {@link #isIsoDate(String)}, as UTC timestamps
+   * in the format of {@link #toUtcTimestamp(String)}, for example 2019-02-28T00:00:00.000+0000
+   * and 2019-03-01T00:00:00.000+0000 for 2019-02-28.
+   * @param s  the date to convert
+   * @return the start of the day and the start of the next day, or null if s has a time
+   * @throws IllegalArgumentException if s is not an ISO 8601 date or not a valid date
+   */
+  public static String [] toUtcDayRange(String s) {
+    String start = toUtcTimestamp(s);
+    if (s.length() != "yyyy-MM-dd".length()) {
+      return null;
+    }
+    return new String [] { start, toUtcTimestamp(LocalDate.parse(s).plusDays(1).toString()) };
+  }
+
+  /**
+   * Return the date of an ISO 8601 date with optional time and time zone offset, see
+   * {@link #isIsoDate(String)}, for example 2019-02-28 for 2019-02-28T23:40:00.000+0200.
+   * @param s  the date to convert
+   * @return the date in yyyy-MM-dd format
+   * @throws IllegalArgumentException if s is not an ISO 8601 date or not a valid date
+   */
+  public static String toIsoDate(String s) {
+    // validate
+    toUtcTimestamp(s);
+    return s.substring(0, 10);
+  }
 }
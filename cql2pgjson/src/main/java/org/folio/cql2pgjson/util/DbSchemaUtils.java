@@ -1,7 +1,17 @@
 package org.folio.cql2pgjson.util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 
 import org.folio.cql2pgjson.model.DbIndex;
 import org.folio.rest.persist.ddlgen.Index;
@@ -13,6 +23,14 @@ import org.folio.rest.persist.ddlgen.Table;
  */
 public class DbSchemaUtils {
 
+  private static Logger logger = Logger.getLogger(DbSchemaUtils.class.getName());
+
+  /** Full text dictionary used if schema.json doesn't configure one */
+  public static final String DEFAULT_DICTIONARY = "simple";
+
+  /** Name of a PostgreSQL text search configuration, optionally schema qualified */
+  private static final Pattern DICTIONARY_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*(\\.[A-Za-z_][A-Za-z0-9_]*)?");
+
   private DbSchemaUtils() {
   }
 
@@ -51,6 +69,237 @@ public class DbSchemaUtils {
     return dbIndexStatus;
   }
 
+  /**
+   * For given index name, find a GIN index with jsonb_path_ops operator class that covers it.
+   * <p>
+   * Such an index is declared in schema.json as a ginIndex entry with "opClass": "jsonb_path_ops".
+   * Its fieldName is the indexed JSON subtree, "*" means the complete JSONB record:
+   * <pre>
+   * "ginIndex": [ { "fieldName": "*", "opClass": "jsonb_path_ops" } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param indexJson
+   * @return the indexed path, "" for the complete record, or null if no index covers indexJson
+   */
+  public static String getJsonbPathOpsIndexPath(JsonNode schemaJson, String indexJson) {
+    String fieldName = CqlUtils.getFieldNameFromIndexJson(indexJson);
+    String tableName = CqlUtils.getTableNameFromCqlField(fieldName);
+    String indexName = CqlUtils.getIndexNameFromIndexJson(indexJson);
+
+    for (JsonNode index : getTableJson(schemaJson, tableName).path("ginIndex")) {
+      if (! "jsonb_path_ops".equals(index.path("opClass").asText())) {
+        continue;
+      }
+      String path = index.path("fieldName").asText();
+      if ("*".equals(path)) {
+        return "";
+      }
+      if (indexName.equals(path) || indexName.startsWith(path + ".")) {
+        return path;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * For given index name, get the full text dictionary (text search configuration) its fullTextIndex uses.
+   * <p>
+   * This is the "dictionary" of the fullTextIndex entry, or the "defaultDictionary" of the
+   * "fullText" section of schema.json, or "simple":
+   * <pre>
+   * "fullText": { "defaultDictionary": "english" },
+   * "tables": [ { "tableName": "users", "fullTextIndex": [ { "fieldName": "name", "dictionary": "simple" } ] } ]
+   * </pre>
+   * A name that isn't a valid SQL identifier is logged and replaced by "simple".
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param indexJson
+   * @return dictionary name, never null
+   */
+  public static String getFullTextDictionary(JsonNode schemaJson, String indexJson) {
+    String fieldName = CqlUtils.getFieldNameFromIndexJson(indexJson);
+    String tableName = CqlUtils.getTableNameFromCqlField(fieldName);
+    String indexName = CqlUtils.getIndexNameFromIndexJson(indexJson);
+
+    String dictionary = schemaJson.path("fullText").path("defaultDictionary").asText();
+    for (JsonNode index : getTableJson(schemaJson, tableName).path("fullTextIndex")) {
+      if (indexName.equals(index.path("fieldName").asText())) {
+        if (! index.path("dictionary").asText().isEmpty()) {
+          dictionary = index.path("dictionary").asText();
+        }
+        break;
+      }
+    }
+    if (dictionary.isEmpty()) {
+      return DEFAULT_DICTIONARY;
+    }
+    if (! DICTIONARY_NAME.matcher(dictionary).matches()) {
+      logger.log(Level.SEVERE, "Invalid full text dictionary name {0} for {1}, using {2}",
+          new Object[] {dictionary, indexJson, DEFAULT_DICTIONARY});
+      return DEFAULT_DICTIONARY;
+    }
+    return dictionary;
+  }
+
+  /**
+   * For given index name, get the fields of the combined multi-field full text index with that name.
+   * <p>
+   * Such an index is declared in schema.json as a fullTextIndex entry with a comma separated
+   * "multiFieldNames" list; it indexes the concatenation of these fields:
+   * <pre>
+   * "fullTextIndex": [ { "fieldName": "keyword", "multiFieldNames": "title,contributors,identifiers" } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param indexJson
+   * @return the field names, empty list if there is no such index
+   */
+  public static List<String> getFullTextMultiFieldNames(JsonNode schemaJson, String indexJson) {
+    String fieldName = CqlUtils.getFieldNameFromIndexJson(indexJson);
+    String tableName = CqlUtils.getTableNameFromCqlField(fieldName);
+    String indexName = CqlUtils.getIndexNameFromIndexJson(indexJson);
+
+    for (JsonNode index : getTableJson(schemaJson, tableName).path("fullTextIndex")) {
+      if (indexName.equals(index.path("fieldName").asText())) {
+        return multiFieldNames(index);
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Find the combined multi-field full text index that indexes exactly the fields given,
+   * see {@link #getFullTextMultiFieldNames(JsonNode, String)}.
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param tableName  name of the table, case insensitive
+   * @param fieldNames  field names in any order
+   * @return the fieldName of the index, or null if there is no such index
+   */
+  public static String getFullTextMultiFieldIndex(JsonNode schemaJson, String tableName, Collection<String> fieldNames) {
+    for (JsonNode index : getTableJson(schemaJson, tableName).path("fullTextIndex")) {
+      List<String> names = multiFieldNames(index);
+      if (! names.isEmpty() && new HashSet<>(names).equals(new HashSet<>(fieldNames))) {
+        return index.path("fieldName").asText();
+      }
+    }
+    return null;
+  }
+
+  private static List<String> multiFieldNames(JsonNode index) {
+    List<String> names = new ArrayList<>();
+    for (String name : index.path("multiFieldNames").asText().split(",")) {
+      if (! name.trim().isEmpty()) {
+        names.add(name.trim());
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Get the field of a table that is a foreign key to another table.
+   * <p>
+   * Such a field is declared in schema.json as a foreignKeys entry of the table:
+   * <pre>
+   * "tables": [ { "tableName": "loan", "foreignKeys": [ { "fieldName": "itemId", "targetTable": "item" } ] } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param tableName  name of the table with the foreign key, case insensitive
+   * @param targetTable  name of the table the foreign key refers to, case insensitive
+   * @return the fieldName of the foreign key, or null if there is no such foreign key
+   */
+  public static String getForeignKeyFieldName(JsonNode schemaJson, String tableName, String targetTable) {
+    for (JsonNode foreignKey : getTableJson(schemaJson, tableName).path("foreignKeys")) {
+      if (foreignKey.path("targetTable").asText().equalsIgnoreCase(targetTable)
+          && ! foreignKey.path("fieldName").asText().isEmpty()) {
+        return foreignKey.path("fieldName").asText();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * For given index name, get the partition key expression of its table if the index is the partition key field.
+   * <p>
+   * The partition key is declared in schema.json as "partitionKey" of the table:
+   * <pre>
+   * "tables": [ { "tableName": "audit", "partitionKey": { "fieldName": "date", "expression": "date_key" } } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param indexJson
+   * @return the expression, or null if the index is not the partition key field
+   */
+  public static String getPartitionKeyExpression(JsonNode schemaJson, String indexJson) {
+    String fieldName = CqlUtils.getFieldNameFromIndexJson(indexJson);
+    String tableName = CqlUtils.getTableNameFromCqlField(fieldName);
+    String indexName = CqlUtils.getIndexNameFromIndexJson(indexJson);
+
+    JsonNode partitionKey = getTableJson(schemaJson, tableName).path("partitionKey");
+    if (! indexName.equals(partitionKey.path("fieldName").asText())
+        || partitionKey.path("expression").asText().isEmpty()) {
+      return null;
+    }
+    return partitionKey.path("expression").asText();
+  }
+
+  /**
+   * Get the routing keys of a table, the fields besides id that a router uses to send a query
+   * to the database nodes that can hold matches.
+   * <p>
+   * They are declared in schema.json as "routingKeys" of the table:
+   * <pre>
+   * "tables": [ { "tableName": "loan", "routingKeys": [ "tenantId", "year" ] } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param tableName  name of the table, case insensitive
+   * @return the field names, empty if there are none
+   */
+  public static List<String> getRoutingKeys(JsonNode schemaJson, String tableName) {
+    List<String> keys = new ArrayList<>();
+    for (JsonNode key : getTableJson(schemaJson, tableName).path("routingKeys")) {
+      if (! key.asText().isEmpty()) {
+        keys.add(key.asText());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Whether the table has the record metadata like metadata.updatedDate that the database maintains.
+   * This is declared in schema.json as "withMetadata" of the table:
+   * <pre>
+   * "tables": [ { "tableName": "loan", "withMetadata": true } ]
+   * </pre>
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param tableName  name of the table, case insensitive
+   * @return false if schema.json declares the table without withMetadata true, true otherwise
+   */
+  public static boolean isWithMetadata(JsonNode schemaJson, String tableName) {
+    JsonNode table = getTableJson(schemaJson, tableName);
+    return table.isMissingNode() || table.path("withMetadata").asBoolean(false);
+  }
+
+  /**
+   * Find the table in schema.json.
+   *
+   * @param schemaJson  schema.json as JSON tree
+   * @param tableName  name of the table, case insensitive
+   * @return the table, or MissingNode if not found
+   */
+  static JsonNode getTableJson(JsonNode schemaJson, String tableName) {
+    for (JsonNode table : schemaJson.path("tables")) {
+      if (table.path("tableName").asText().equalsIgnoreCase(tableName)) {
+        return table;
+      }
+    }
+    return MissingNode.getInstance();
+  }
+
   private static boolean checkDbIndex(String cqlIndex, List<Index> indexes) {
     if (indexes != null && !indexes.isEmpty()) {
       for (Index i : indexes) {
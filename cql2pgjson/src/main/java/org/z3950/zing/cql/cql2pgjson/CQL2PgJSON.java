@@ -3,21 +3,34 @@ package org.z3950.zing.cql.cql2pgjson;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.math.BigDecimal;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.BooleanNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
 import org.apache.commons.lang3.StringUtils;
 import org.folio.cql2pgjson.exception.CQLFeatureUnsupportedException;
 import org.folio.cql2pgjson.exception.FieldException;
 import org.folio.cql2pgjson.exception.QueryValidationException;
 import org.folio.cql2pgjson.exception.ServerChoiceIndexesException;
+import org.folio.cql2pgjson.model.CountStrategy;
 import org.folio.cql2pgjson.model.CqlAccents;
 import org.folio.cql2pgjson.model.CqlCase;
 import org.folio.cql2pgjson.model.CqlModifiers;
@@ -25,8 +38,13 @@ import org.folio.cql2pgjson.model.CqlSort;
 import org.folio.cql2pgjson.model.CqlTermFormat;
 import org.folio.cql2pgjson.model.DbIndex;
 import org.folio.cql2pgjson.model.IndexTextAndJsonValues;
+import org.folio.cql2pgjson.model.KeyConstraint;
+import org.folio.cql2pgjson.model.SqlFanOut;
 import org.folio.cql2pgjson.model.SqlSelect;
+import org.folio.cql2pgjson.model.SqlTemplate;
+import org.folio.cql2pgjson.model.TableSample;
 import org.folio.cql2pgjson.util.Cql2SqlUtil;
+import org.folio.cql2pgjson.util.CqlUtils;
 import org.folio.cql2pgjson.util.DbSchemaUtils;
 import org.folio.rest.persist.ddlgen.Schema;
 import org.folio.rest.persist.ddlgen.Table;
@@ -38,8 +56,10 @@ import org.z3950.zing.cql.CQLNotNode;
 import org.z3950.zing.cql.CQLOrNode;
 import org.z3950.zing.cql.CQLParseException;
 import org.z3950.zing.cql.CQLParser;
+import org.z3950.zing.cql.CQLRelation;
 import org.z3950.zing.cql.CQLSortNode;
 import org.z3950.zing.cql.CQLTermNode;
+import org.z3950.zing.cql.Modifier;
 import org.z3950.zing.cql.ModifierSet;
 
 /**
@@ -60,12 +80,17 @@ public class CQL2PgJSON {
    */
   private static Logger logger = Logger.getLogger(CQL2PgJSON.class.getName());
 
+  /** the JSONB column of a table that RMB creates from schema.json */
+  private static final String RMB_JSONB_COLUMN = "jsonb";
+
   private String jsonField = null;
   private List<String> jsonFields = null;
 
   // leverage RMB and consider to merge cql2pgjson into RMB
   private Schema dbSchema;
   private Table dbTable;
+  /** schema.json as JSON tree, for the settings that RMB's Schema class doesn't know */
+  private JsonNode dbSchemaJson = MissingNode.getInstance();
 
   /**
    * Default index names to be used for cql.serverChoice.
@@ -73,6 +98,30 @@ public class CQL2PgJSON {
    */
   private List<String> serverChoiceIndexes = Collections.emptyList();
 
+  /** JSON schema of the records in the JSONB field, used for type specific translation; null if none */
+  private org.folio.cql2pgjson.tbd.Schema recordSchema = null;
+
+  /** sort index for relevance ranking of the full text search */
+  private static final String RELEVANCE = "cql.relevance";
+
+  /** update timestamp of the record, maintained by the database for tables withMetadata */
+  private static final String UPDATED_DATE = "metadata.updatedDate";
+
+  /** maximum number of records to rank for sortBy cql.relevance, 0 for no limit */
+  private int relevanceCandidateLimit = 0;
+
+  /** SQL regular expression of a string that can be cast to numeric, like Cql2SqlUtil.isPostgresNumber */
+  private static final String POSTGRES_NUMBER_REGEX = "^\\s*[+-]?(\\d+|\\d+\\.\\d*|\\.\\d+)([eE][+-]?\\d+)?\\s*$";
+
+  /** field path like address.city */
+  private static final Pattern FIELD_PATH = Pattern.compile("[A-Za-z0-9_]+(\\.[A-Za-z0-9_]+)*");
+
+  /** field path of a facet, [] at the end for array elements */
+  private static final Pattern FACET = Pattern.compile(FIELD_PATH.pattern() + "(\\[\\])?");
+
+  /** whether to compile AND/OR trees into a single jsonpath predicate, see {@link #setJsonPathMode(boolean)} */
+  private boolean jsonPathMode = false;
+
   public String getjsonField() {
     return jsonField;
   }
@@ -89,6 +138,83 @@ public class CQL2PgJSON {
     loadDbSchema(dbSchemaPath);
   }
 
+  public org.folio.cql2pgjson.tbd.Schema getRecordSchema() {
+    return recordSchema;
+  }
+
+  /**
+   * Set the JSON schema of the records in the (first) JSONB field to enable type specific translation:
+   * <ul>
+   * <li>number and integer fields compare numbers like the /number modifier if the term is a number,
+   * <li>boolean fields compare the JSONB value: active==true becomes jsonb-&gt;'active' = 'true',
+   * <li>fields with type date or format date compare jsonb-&gt;&gt;'field' with the date of the term
+   * like 2019-02-28,
+   * <li>fields with type datetime or format date-time compare jsonb-&gt;&gt;'field' with the term
+   * converted to UTC like 2019-02-28T16:40:00.000+0000
+   * </ul>
+   * if the term is an ISO 8601 date. The text comparison can use a btree index on jsonb-&gt;&gt;'field'
+   * and requires that the records store dates as yyyy-MM-dd and timestamps in that UTC format like
+   * the record metadata. Unknown fields and other types use the default translation.
+   *
+   * @param recordSchema  the JSON schema, null to disable
+   */
+  public void setRecordSchema(org.folio.cql2pgjson.tbd.Schema recordSchema) {
+    this.recordSchema = recordSchema;
+  }
+
+  public int getRelevanceCandidateLimit() {
+    return relevanceCandidateLimit;
+  }
+
+  /**
+   * Set the maximum number of matching records that sortBy cql.relevance ranks.
+   * <p>
+   * Ranking needs to calculate the rank of each matching record, for a frequent word this can be
+   * millions. With a limit the query is restricted to the first limit records the full text index
+   * returns: <code>id IN (SELECT id FROM table WHERE ... LIMIT 1000)</code>. This requires a table
+   * qualified JSONB field like users.jsonb.
+   * <p>
+   * Default is 0 = no limit.
+   *
+   * @param relevanceCandidateLimit  the maximum, 0 for no limit
+   */
+  public void setRelevanceCandidateLimit(int relevanceCandidateLimit) {
+    this.relevanceCandidateLimit = relevanceCandidateLimit;
+  }
+
+  public boolean isJsonPathMode() {
+    return jsonPathMode;
+  }
+
+  /**
+   * Enable or disable the jsonpath translation.
+   * <p>
+   * If enabled each AND/OR subtree and each relation where all relations are on the same JSONB field
+   * and can be expressed in SQL/JSON path language is compiled into a single jsonpath predicate,
+   * for example <code>name==/respectCase/respectAccents Lea AND zip&gt;/number 3</code> becomes
+   * <code>user_data @@ '($."name" == "Lea" &amp;&amp; $."zip" &gt; 3)'</code>.
+   * A single GIN index with jsonb_path_ops operator class on the JSONB field can serve it.
+   * <p>
+   * These relations can be expressed: <code>==</code> with true, false or a string
+   * without masking characters where both case and accents are respected, and
+   * <code>=</code>, <code>==</code>, <code>&lt;</code>, <code>&gt;</code>, <code>&lt;=</code>,
+   * <code>&gt;=</code> with a number term and /number modifier or on a number or integer field of the
+   * record schema. A number term of any other relation, like <code>zip==3</code>, uses the default
+   * translation. All other subtrees use the default translation too,
+   * NOT always keeps the SQL translation. Unlike the default translation the jsonpath predicate also
+   * matches array elements (lax mode), and it doesn't match numbers stored as JSON strings.
+   * <p>
+   * The jsonpath type and the @@ operator require PostgreSQL 12 or later, an older server rejects the
+   * generated SQL.
+   * <p>
+   * Default is false.
+   *
+   * @param jsonPathMode  true to enable
+   */
+  public void setJsonPathMode(boolean jsonPathMode) {
+    this.jsonPathMode = jsonPathMode;
+  }
+
   private void loadDbSchema(String schemaPath) {
     try {
       String dbJson;
@@ -106,6 +232,7 @@ public class CQL2PgJSON {
         logger.log(Level.INFO, "loadDbSchema: Loaded " + schemaPath + " OK");
       }
       dbSchema = ObjectMapperTool.getMapper().readValue(dbJson, org.folio.rest.persist.ddlgen.Schema.class);
+      dbSchemaJson = ObjectMapperTool.getMapper().readTree(dbJson);
     } catch (IOException ex) {
       logger.log(Level.SEVERE, "No schema.json found", ex);
     }
@@ -118,8 +245,8 @@ public class CQL2PgJSON {
         return;
       }
       // Remove the json blob field name, usually ".jsonb", but in tests also
-      // ".user_data" etc.
-      String tname = this.jsonField.replaceAll("\\.[^.]+$", "");
+      // ".user_data" etc., and the schema name like tenant1 or SqlTemplate.SCHEMA_PLACEHOLDER
+      String tname = StringUtils.defaultString(CqlUtils.getTableNameFromCqlField(jsonField), jsonField);
       for (Table table : dbSchema.getTables()) {
         if (tname.equalsIgnoreCase(table.getTableName())) {
           dbTable = table;
@@ -168,6 +295,20 @@ public class CQL2PgJSON {
     setServerChoiceIndexes(serverChoiceIndexes);
   }
 
+  /**
+   * Create an instance for a table related to the table of parent, sharing the schema.json of parent.
+   *
+   * @param parent  the instance whose schema.json to use
+   * @param field  Name of the JSON field of the related table
+   * @throws FieldException provided field is not valid
+   */
+  private CQL2PgJSON(CQL2PgJSON parent, String field) throws FieldException {
+    jsonField = trimNotEmpty(field);
+    dbSchema = parent.dbSchema;
+    dbSchemaJson = parent.dbSchemaJson;
+    initDbTable();
+  }
+
   /**
    * Create an instance for the specified list of schemas. If only one field name is provided, queries will
    * default to the handling of single field queries.
@@ -282,31 +423,83 @@ public class CQL2PgJSON {
    * @throws QueryValidationException
    */
   public SqlSelect toSql(String cql) throws QueryValidationException {
+    return toSql(cql, relevanceCandidateLimit);
+  }
+
+  /**
+   * @param candidateLimit  maximum number of records to rank for sortBy cql.relevance, 0 for no limit
+   */
+  private SqlSelect toSql(String cql, int candidateLimit) throws QueryValidationException {
     try {
       CQLParser parser = new CQLParser();
       CQLNode node = parser.parse(cql);
-      return toSql(node);
+      return toSql(node, candidateLimit);
     } catch (IOException|CQLParseException e) {
       throw new QueryValidationException(e);
     }
   }
 
-  private SqlSelect toSql(CQLNode node) throws QueryValidationException {
+  /**
+   * Convert the CQL query into a SQL query that searches a random sample of the table only,
+   * and return the TABLESAMPLE, the WHERE and the ORDER BY clause. SqlSelect.toString() can
+   * be appended to SELECT ... FROM table:
+   * <p>
+   * SELECT * FROM users TABLESAMPLE SYSTEM (1) REPEATABLE (42) WHERE ... ORDER BY ...
+   * <p>
+   * This is fast for an exploratory query against a huge table that needs a rough answer only.
+   * Use {@link #toSqlSampleCount(String, TableSample)} for the estimated number of matching records.
+   *
+   * @param cql  the query to convert
+   * @param tableSample  sampling method, percentage and seed
+   * @return SQL query
+   * @throws QueryValidationException on invalid query
+   */
+  public SqlSelect toSql(String cql, TableSample tableSample) throws QueryValidationException {
+    SqlSelect sqlSelect = toSql(cql);
+    return new SqlSelect(sqlSelect.getWhere(), sqlSelect.getOrderBy(), tableSample);
+  }
+
+  private SqlSelect toSql(CQLNode node, int candidateLimit) throws QueryValidationException {
     if (node instanceof CQLSortNode) {
-      return toSql((CQLSortNode) node);
+      return toSql((CQLSortNode) node, candidateLimit);
     }
     return new SqlSelect(pg(node), null);
   }
 
   private String pg(CQLNode node) throws QueryValidationException {
+    return pg(node, jsonPaths(node), null);
+  }
+
+  /**
+   * @return the subtrees of node that can be expressed as jsonpath, empty if not in jsonpath mode
+   */
+  private Map<CQLNode, String []> jsonPaths(CQLNode node) throws QueryValidationException {
+    Map<CQLNode, String []> jsonPaths = new IdentityHashMap<>();
+    if (jsonPathMode) {
+      jsonPath(node, jsonPaths);
+    }
+    return jsonPaths;
+  }
+
+  /**
+   * @param jsonPaths  the subtrees that can be expressed as jsonpath, see {@link #jsonPath(CQLNode, Map)}
+   * @param ranks  collects the ts_rank of each full text search, null if not sorted by relevance
+   */
+  private String pg(CQLNode node, Map<CQLNode, String []> jsonPaths, List<String> ranks)
+      throws QueryValidationException {
+
+    String [] jsonPath = jsonPaths.get(node);
+    if (jsonPath != null) {
+      return jsonPathPredicate(jsonPath);
+    }
     if (node instanceof CQLTermNode) {
-      return pg((CQLTermNode) node);
+      return pg((CQLTermNode) node, ranks);
     }
     if (node instanceof CQLBooleanNode) {
-      return pg((CQLBooleanNode) node);
+      return pg((CQLBooleanNode) node, jsonPaths, ranks);
     }
     if (node instanceof CQLSortNode) {
-      SqlSelect sqlSelect = toSql((CQLSortNode) node);
+      SqlSelect sqlSelect = toSql((CQLSortNode) node, relevanceCandidateLimit);
       return sqlSelect.getWhere() + " ORDER BY " + sqlSelect.getOrderBy();
     }
     throw createUnsupportedException(node);
@@ -344,181 +537,1293 @@ public class CQL2PgJSON {
     return result;
   }
 
-  private SqlSelect toSql(CQLSortNode node) throws QueryValidationException {
-    StringBuilder order = new StringBuilder();
-    String where = pg(node.getSubtree());
-
-    boolean firstIndex = true;
-    for (ModifierSet modifierSet : node.getSortIndexes()) {
-      if (firstIndex) {
-        firstIndex = false;
-      } else {
-        order.append(", ");
-      }
-
-      String desc = "";
-      CqlModifiers modifiers = new CqlModifiers(modifierSet);
-      if (modifiers.getCqlSort() == CqlSort.DESCENDING) {
-        desc = " DESC";
-      }  // ASC not needed, it's Postgres' default
-
-      if (modifierSet.getBase().equals("id")) {
-        order.append(getPkColumnName()).append(desc);
-        continue;
+  private SqlSelect toSql(CQLSortNode node, int candidateLimit) throws QueryValidationException {
+    List<String> ranks = new ArrayList<>();
+    String where = pgSubtree(node, ranks);
+    List<SortKey> sortKeys = sortKeys(node, ranks);
+    for (SortKey sortKey : sortKeys) {
+      if (sortKey.type == SortKeyType.RELEVANCE) {
+        where = limitRelevanceCandidates(where, candidateLimit);
+        break;
       }
+    }
+    return new SqlSelect(where, orderBy(sortKeys));
+  }
 
-      IndexTextAndJsonValues vals = getIndexTextAndJsonValues(modifierSet.getBase());
+  /**
+   * Convert the CQL query into the WHERE and the ORDER BY clause of the page that follows
+   * the record with the sort key values lastSortValues and the primary key lastId.
+   * <p>
+   * Unlike OFFSET this is a keyset (seek) pagination: The WHERE clause is extended by a
+   * row value comparison of the sortBy expressions, the primary key is appended to the
+   * ORDER BY clause as a tie-breaker. Example for name/sort.ascending:
+   * <p>
+   * WHERE (...) AND ((lower(f_unaccent(users.jsonb-&gt;&gt;'name')), id) &gt; (lower(f_unaccent('Jo')), '...')
+   *   OR lower(f_unaccent(users.jsonb-&gt;&gt;'name')) IS NULL)
+   * ORDER BY lower(f_unaccent(users.jsonb-&gt;&gt;'name')), id
+   * <p>
+   * An index on the sortBy expressions can find the start of the page without reading
+   * the previous pages. Mixed sort directions use an equivalent OR expansion.
+   *
+   * @param cql  the query to convert, sortBy cql.relevance is not supported
+   * @param lastSortValues  the values of the sortBy indexes of the last record of the previous page,
+   *     as returned by -&gt;&gt;, one value per sortBy index, null if the record doesn't have it;
+   *     ignored for the first page; a null list counts as empty
+   * @param lastId  primary key of the last record of the previous page, null for the first page
+   * @return SQL query
+   * @throws QueryValidationException on invalid query, invalid value, or wrong number of values
+   */
+  public SqlSelect toSqlAfter(String cql, List<String> lastSortValues, String lastId)
+      throws QueryValidationException {
 
-      // if sort field is marked explicitly as number type
-      if (modifiers.getCqlTermFormat() == CqlTermFormat.NUMBER) {
-        order.append(vals.getIndexJson()).append(desc);
-        continue;
+    CQLNode node;
+    try {
+      node = new CQLParser().parse(cql);
+    } catch (IOException|CQLParseException e) {
+      throw new QueryValidationException(e);
+    }
+    String where;
+    List<SortKey> sortKeys;
+    if (node instanceof CQLSortNode) {
+      if (hasRelevanceSort((CQLSortNode) node)) {
+        throw new QueryValidationException("cql.relevance cannot be used for keyset pagination: " + cql);
       }
-
-      // We assume that a CREATE INDEX for this has been installed.
-      order.append(wrapInLowerUnaccent(vals.getIndexText())).append(desc);
+      where = pg(((CQLSortNode) node).getSubtree());
+      sortKeys = sortKeys((CQLSortNode) node, Collections.emptyList());
+    } else {
+      where = pg(node);
+      sortKeys = new ArrayList<>();
     }
-    return new SqlSelect(where, order.toString());
+    boolean descending = true;
+    for (SortKey sortKey : sortKeys) {
+      descending &= sortKey.descending;
+    }
+    int size = sortKeys.size();
+    if (sortKeys.isEmpty() || sortKeys.get(size - 1).type != SortKeyType.ID) {
+      // the tie-breaker takes the direction of the other keys so that a row value comparison works
+      sortKeys.add(new SortKey(getPkColumnName(), descending && ! sortKeys.isEmpty(), SortKeyType.ID));
+    }
+    if (lastId == null) {
+      return new SqlSelect(where, orderBy(sortKeys));
+    }
+    int valuesSize = lastSortValues == null ? 0 : lastSortValues.size();
+    if (size != valuesSize) {
+      throw new QueryValidationException("Expected " + size + " sort values but got "
+          + valuesSize + ": " + cql);
+    }
+    List<String> literals = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      literals.add(sortKeys.get(i).literal(lastSortValues.get(i)));
+    }
+    if (sortKeys.size() > size) {
+      literals.add(sortKeys.get(size).literal(lastId));
+    }
+    return new SqlSelect("(" + where + ") AND " + keysetCondition(sortKeys, literals), orderBy(sortKeys));
   }
 
-  String getPkColumnName() {
-    if (dbTable == null) {
-      return "id";
+  /**
+   * Convert the CQL query into the WHERE and the ORDER BY clause for the matching records that
+   * have been updated after the watermark, for clients that poll the same query to sync changes.
+   * <p>
+   * The records are ordered by metadata.updatedDate and the primary key. The next poll passes the
+   * metadata.updatedDate and the id of the last record read:
+   * <p>
+   * WHERE (...) AND users.jsonb-&gt;'metadata'-&gt;&gt;'updatedDate' &gt;= '2019-03-11T10:25:37.545+0000'
+   *   AND (users.jsonb-&gt;'metadata'-&gt;&gt;'updatedDate' &gt; '2019-03-11T10:25:37.545+0000' OR id &gt; '...')
+   * ORDER BY users.jsonb-&gt;'metadata'-&gt;&gt;'updatedDate', id
+   * <p>
+   * The first condition can use an index on the updatedDate expression, the cost depends on the
+   * number of changes, not the number of matching records. The updatedDate is compared as text, the
+   * watermark must have the format of the stored values. A sortBy clause of the query is ignored.
+   *
+   * @param cql  the query to convert
+   * @param watermark  metadata.updatedDate of the last record read, null for all records
+   * @param lastId  primary key of the last record read, null to return all records updated after
+   *     the watermark
+   * @return SQL query
+   * @throws QueryValidationException on invalid query, invalid watermark, or if schema.json declares
+   *     the table without withMetadata
+   */
+  public SqlSelect toSqlChangedSince(String cql, String watermark, String lastId)
+      throws QueryValidationException {
+
+    CQLNode node;
+    try {
+      node = new CQLParser().parse(cql);
+    } catch (IOException|CQLParseException e) {
+      throw new QueryValidationException(e);
     }
-    return StringUtils.defaultIfBlank(dbTable.getPkColumnName(), "id");
+    String table = CqlUtils.getTableNameFromCqlField(getDefaultJsonField());
+    if (! DbSchemaUtils.isWithMetadata(dbSchemaJson, table)) {
+      throw new QueryValidationException("Table " + table + " has no withMetadata in schema.json");
+    }
+    if (node instanceof CQLSortNode) {
+      node = ((CQLSortNode) node).getSubtree();
+    }
+    String where = pg(node);
+    String updatedDate = getIndexTextAndJsonValues(UPDATED_DATE).getIndexText();
+    String pk = getPkColumnName();
+    String orderBy = updatedDate + ", " + pk;
+    if (watermark == null) {
+      return new SqlSelect(where, orderBy);
+    }
+    if (! Cql2SqlUtil.isIsoDate(watermark)) {
+      throw new QueryValidationException("Watermark is not an ISO 8601 timestamp: " + watermark);
+    }
+    String literal = "'" + watermark + "'";
+    if (lastId == null) {
+      return new SqlSelect("(" + where + ") AND " + updatedDate + " > " + literal, orderBy);
+    }
+    if (! lastId.matches(UUID_PATTERN)) {
+      throw new QueryValidationException("lastId is not a UUID: " + lastId);
+    }
+    return new SqlSelect("(" + where + ") AND " + updatedDate + " >= " + literal
+        + " AND (" + updatedDate + " > " + literal + " OR " + pk + " > '" + lastId + "')", orderBy);
   }
 
-  private static String sqlOperator(CQLBooleanNode node) throws CQLFeatureUnsupportedException {
-    if (node instanceof CQLAndNode) {
-      return "AND";
+  /**
+   * Split the CQL query at its top-level OR operators, and a cql.serverChoice term at its
+   * serverChoiceIndexes, into branches that can run concurrently on separate connections, see
+   * FanOutExecutor. A query without OR has a single branch.
+   * <p>
+   * The ORDER BY keys get the primary key as tie-breaker so that the branch results can be merged
+   * outside of the database. Text sort keys keep the collation of the database, FanOutExecutor
+   * merges them using that collation.
+   *
+   * @param cql  the query to convert, sortBy cql.relevance is not supported
+   * @return the branches and the sort keys
+   * @throws QueryValidationException on invalid query
+   */
+  public SqlFanOut toSqlFanOut(String cql) throws QueryValidationException {
+    CQLNode node;
+    try {
+      node = new CQLParser().parse(cql);
+    } catch (IOException|CQLParseException e) {
+      throw new QueryValidationException(e);
     }
-    if (node instanceof CQLOrNode) {
-      return "OR";
+    List<SqlFanOut.SortKey> fanOutSortKeys = new ArrayList<>();
+    if (node instanceof CQLSortNode) {
+      if (hasRelevanceSort((CQLSortNode) node)) {
+        throw new QueryValidationException("cql.relevance cannot be used for fan-out: " + cql);
+      }
+      for (SortKey sortKey : sortKeys((CQLSortNode) node, Collections.emptyList())) {
+        switch (sortKey.type) {
+        case ID:
+          fanOutSortKeys.add(new SqlFanOut.SortKey(sortKey.expression, sortKey.descending, SqlFanOut.SortKeyType.ID));
+          break;
+        case NUMBER:
+          fanOutSortKeys.add(new SqlFanOut.SortKey(sortKey.expression, sortKey.descending, SqlFanOut.SortKeyType.NUMBER));
+          break;
+        default:
+          fanOutSortKeys.add(new SqlFanOut.SortKey(sortKey.expression, sortKey.descending, SqlFanOut.SortKeyType.TEXT));
+          break;
+        }
+      }
+      node = ((CQLSortNode) node).getSubtree();
     }
-    if (node instanceof CQLNotNode) {
-      // CQL "NOT" means SQL "AND NOT", see section "7. Boolean Operators" in
-      // https://www.loc.gov/standards/sru/cql/spec.html
-      return "AND NOT";
+    int size = fanOutSortKeys.size();
+    if (size == 0 || fanOutSortKeys.get(size - 1).getType() != SqlFanOut.SortKeyType.ID) {
+      fanOutSortKeys.add(new SqlFanOut.SortKey(getPkColumnName(), false, SqlFanOut.SortKeyType.ID));
     }
-    throw createUnsupportedException(node);
+    List<String> wheres = new ArrayList<>();
+    fanOutBranches(node, jsonPaths(node), wheres);
+    return new SqlFanOut(wheres, fanOutSortKeys);
   }
 
-  private String pg(CQLBooleanNode node) throws QueryValidationException {
-    String operator = sqlOperator(node);
-    String isNotTrue = "";
+  /**
+   * Add the WHERE clause of each branch of node to wheres. The branches are translated like
+   * {@link #toSql(String)} translates them as part of the complete query.
+   *
+   * @param jsonPaths  see {@link #jsonPath(CQLNode, Map)}, for the complete query
+   */
+  private void fanOutBranches(CQLNode node, Map<CQLNode, String []> jsonPaths, List<String> wheres)
+      throws QueryValidationException {
 
-    // special case for the query the UI uses most often, before the user has
-    // typed in anything: title=* OR contributors*= OR identifier=*
-    if ("OR".equals(operator)
-      && node.getRightOperand().getClass() == CQLTermNode.class) {
-      CQLTermNode r = (CQLTermNode) (node.getRightOperand());
-      if ("*".equals(r.getTerm()) && "=".equals(r.getRelation().getBase())) {
-        logger.log(Level.FINE, "pgFT(): Simplifying =* OR =* ");
-        return pg(node.getLeftOperand());
+    if (node instanceof CQLOrNode && ! jsonPaths.containsKey(node)) {
+      CQLNode simplified = simplifiedOr((CQLBooleanNode) node);
+      if (simplified != null) {
+        fanOutBranches(simplified, jsonPaths, wheres);
+        return;
       }
+      fanOutBranches(((CQLBooleanNode) node).getLeftOperand(), jsonPaths, wheres);
+      fanOutBranches(((CQLBooleanNode) node).getRightOperand(), jsonPaths, wheres);
+      return;
     }
-
-    if ("AND NOT".equals(operator)) {
-      operator = "AND (";
-      isNotTrue = ") IS NOT TRUE";
-      // NOT TRUE is (FALSE or NULL) to catch the NULL case when the field does not exist.
-      // This completely inverts the right operand.
+    if (node instanceof CQLTermNode && ! jsonPaths.containsKey(node)
+        && "cql.serverChoice".equalsIgnoreCase(((CQLTermNode) node).getIndex())
+        && serverChoiceIndexes.size() > 1
+        && DbSchemaUtils.getFullTextMultiFieldIndex(dbSchemaJson,
+            CqlUtils.getTableNameFromCqlField(getDefaultJsonField()), serverChoiceIndexes) == null) {
+      for (String index : serverChoiceIndexes) {
+        wheres.add(index2sql(index, (CQLTermNode) node, null));
+      }
+      return;
     }
-
-    return "(" + pg(node.getLeftOperand()) + ") "
-        + operator
-        + " (" + pg(node.getRightOperand()) + isNotTrue + ")";
+    wheres.add(pg(node, jsonPaths, null));
   }
 
   /**
-   * Convert index name to SQL term of type text.
-   * Example result for field=user and index=foo.bar:
-   * user->'foo'->>'bar'
-   * @param jsonField
-   * @param index name to convert
+   * Convert the CQL query into a WHERE and ORDER BY clause with placeholders for the schema name.
+   * This instance must use SqlTemplate.SCHEMA_PLACEHOLDER as schema name in the JSONB field name, for
+   * example ${schema}.users.jsonb. The template can be cached and filled in for each tenant:
+   * <p>
+   * toSqlTemplate("name=Jo").fill("diku_mod_users")
    *
-   * @return SQL term
+   * @param cql  the query to convert
+   * @return the template
+   * @throws QueryValidationException on invalid query
    */
-  private static String index2sqlText(String jsonField, String index) {
-    String result = jsonField + "->'" + index.replace(".", "'->'") + "'";
-    int lastArrow = result.lastIndexOf("->'");
-    return result.substring(0,  lastArrow) + "->>" + result.substring(lastArrow + 2);
+  public SqlTemplate toSqlTemplate(String cql) throws QueryValidationException {
+    return new SqlTemplate(toSql(cql));
   }
 
   /**
-   * Convert index name to SQL term of type json.
-   * Example result for field=user and index=foo.bar:
-   * user->'foo'->'bar'
-   * @param jsonField
-   * @param index name to convert
+   * The constraints that the CQL query implies on the primary key id and on the routing keys
+   * declared in schema.json, see {@link DbSchemaUtils#getRoutingKeys(JsonNode, String)}. A router
+   * can send the query to those database nodes only that hold matching key values.
+   * <p>
+   * The constraints are conservative: A record outside of a constraint never matches, a record
+   * inside may or may not match. id values are lower case UUIDs.
    *
-   * @return SQL term
+   * @param cql  the query
+   * @return key name to constraint, in the order id and routing keys
+   * @throws QueryValidationException on invalid query
    */
-  private static String index2sqlJson(String jsonField, String index) {
-    return jsonField + "->'" + index.replace(".", "'->'") + "'";
+  public Map<String, KeyConstraint> getKeyConstraints(String cql) throws QueryValidationException {
+    CQLNode node;
+    try {
+      node = new CQLParser().parse(cql);
+    } catch (IOException|CQLParseException e) {
+      throw new QueryValidationException(e);
+    }
+    Map<String, KeyConstraint> constraints = new LinkedHashMap<>();
+    constraints.put("id", keyConstraint(node, "id"));
+    for (String key : DbSchemaUtils.getRoutingKeys(dbSchemaJson,
+        CqlUtils.getTableNameFromCqlField(getDefaultJsonField()))) {
+      constraints.put(key, keyConstraint(node, key));
+    }
+    return constraints;
   }
 
-  private IndexTextAndJsonValues getIndexTextAndJsonValues(String index)
-      throws QueryValidationException {
-    if (jsonField == null) {
-      return multiFieldProcessing(index);
+  private KeyConstraint keyConstraint(CQLNode node, String key) throws QueryValidationException {
+    if (node instanceof CQLSortNode) {
+      return keyConstraint(((CQLSortNode) node).getSubtree(), key);
     }
-    IndexTextAndJsonValues vals = new IndexTextAndJsonValues();
-    vals.setIndexJson(index2sqlJson(this.jsonField, index));
-    vals.setIndexText(index2sqlText(this.jsonField, index));
-    return vals;
+    if (node instanceof CQLAndNode) {
+      CQLBooleanNode and = (CQLBooleanNode) node;
+      return keyConstraint(and.getLeftOperand(), key).and(keyConstraint(and.getRightOperand(), key));
+    }
+    if (node instanceof CQLOrNode) {
+      CQLBooleanNode or = (CQLBooleanNode) node;
+      return keyConstraint(or.getLeftOperand(), key).or(keyConstraint(or.getRightOperand(), key));
+    }
+    if (node instanceof CQLNotNode) {
+      // a NOT b: the right operand may exclude values, but never adds any
+      return keyConstraint(((CQLBooleanNode) node).getLeftOperand(), key);
+    }
+    if (! (node instanceof CQLTermNode) || ! isKeyIndex(((CQLTermNode) node).getIndex(), key)) {
+      return KeyConstraint.ALL;
+    }
+    List<String []> comparisons = impliedComparisons((CQLTermNode) node);
+    if (comparisons == null) {
+      return KeyConstraint.ALL;
+    }
+    KeyConstraint constraint = KeyConstraint.ALL;
+    for (String [] comparison : comparisons) {
+      constraint = constraint.and(KeyConstraint.of(comparison[0], comparison[1]));
+    }
+    return constraint;
   }
 
-  private IndexTextAndJsonValues multiFieldProcessing( String index ) throws QueryValidationException {
-    IndexTextAndJsonValues vals = new IndexTextAndJsonValues();
-
-    // processing for case where index is prefixed with json field name
-    for (String f : jsonFields) {
-      if (index.startsWith(f+'.')) {
-        String indexTermWithinField = index.substring(f.length()+1);
-        vals.setIndexJson(index2sqlJson(f, indexTermWithinField));
-        vals.setIndexText(index2sqlText(f, indexTermWithinField));
-        return vals;
-      }
+  private boolean isKeyIndex(String index, String key) throws QueryValidationException {
+    if ("id".equals(key)) {
+      return "id".equals(index);
+    }
+    if ("id".equals(index) || index.toLowerCase().startsWith("cql.")) {
+      return false;
     }
+    return key.equals(CqlUtils.getIndexNameFromIndexJson(getIndexTextAndJsonValues(index).getIndexJson()));
+  }
 
-    // if no json field name prefix is found, the default field name gets applied.
-    String defaultJsonField = this.jsonFields.get(0);
-    vals.setIndexJson(index2sqlJson(defaultJsonField, index));
-    vals.setIndexText(index2sqlText(defaultJsonField, index));
-    return vals;
+  /**
+   * Convert the CQL query into a complete SELECT statement that fetches one page in two phases
+   * (deferred join, late materialization): The inner query selects the primary keys of the page
+   * only, the outer query joins the table to fetch the records of these keys. Example:
+   * <p>
+   * SELECT users.* FROM (SELECT id FROM users WHERE ... ORDER BY ... LIMIT 10 OFFSET 20) AS page
+   * JOIN users USING (id) ORDER BY ...
+   * <p>
+   * This avoids reading and detoasting the JSONB of the records that the sort discards.
+   * With an index on the sort expressions the inner query may become an index scan.
+   *
+   * @param cql  the query to convert
+   * @param limit  maximum number of records to return
+   * @param offset  number of records to skip
+   * @return SQL query
+   * @throws QueryValidationException on invalid query or if the JSONB field is not table qualified
+   */
+  public String toSqlDeferredJoin(String cql, int limit, int offset) throws QueryValidationException {
+    SqlSelect sqlSelect = toSql(cql);
+    String table = getTableName();
+    String pk = getPkColumnName();
+    String orderBy = sqlSelect.getOrderBy().isEmpty() ? "" : " ORDER BY " + sqlSelect.getOrderBy();
+    return "SELECT " + table + ".* FROM (SELECT " + pk + " FROM " + table
+        + " WHERE " + sqlSelect.getWhere() + orderBy + " LIMIT " + limit + " OFFSET " + offset + ") AS page"
+        + " JOIN " + table + " USING (" + pk + ")" + orderBy;
   }
 
-  private String pg(CQLTermNode node) throws QueryValidationException {
-    if ("cql.allRecords".equalsIgnoreCase(node.getIndex())) {
-      return "true";
+  /**
+   * Convert the CQL query into a SELECT statement that counts the matching records.
+   * <ul>
+   * <li>EXACT: SELECT count(*) FROM users WHERE ...
+   * <li>CAPPED: SELECT count(*) FROM (SELECT 1 FROM users WHERE ... LIMIT threshold) AS capped,
+   * stops counting at threshold
+   * <li>ESTIMATED: EXPLAIN (FORMAT JSON) SELECT 1 FROM users WHERE ..., returns the query plan only,
+   * use {@link #getEstimatedCount(String)} to get the planner's row estimate from it
+   * </ul>
+   * Use {@link CountStrategy#of(long, long)} to pick EXACT for small and ESTIMATED for large results.
+   *
+   * @param cql  the query, sortBy is ignored
+   * @param strategy  how to count
+   * @param threshold  the limit for CAPPED, ignored otherwise
+   * @return SQL query
+   * @throws QueryValidationException on invalid query or if the JSONB field is not table qualified
+   */
+  public String toSqlCount(String cql, CountStrategy strategy, long threshold) throws QueryValidationException {
+    String from = " FROM " + getTableName() + " WHERE " + toSql(cql).getWhere();
+    switch (strategy) {
+    case CAPPED:
+      return "SELECT count(*) FROM (SELECT 1" + from + " LIMIT " + threshold + ") AS capped";
+    case ESTIMATED:
+      return "EXPLAIN (FORMAT JSON) SELECT 1" + from;
+    default:
+      return "SELECT count(*)" + from;
     }
-    if ("cql.serverChoice".equalsIgnoreCase(node.getIndex())) {
-      if (serverChoiceIndexes.isEmpty()) {
-        throw new QueryValidationException("cql.serverChoice requested, but no serverChoiceIndexes defined.");
-      }
-      List<String> sqlPieces = new ArrayList<>();
-      for(String index : serverChoiceIndexes) {
-        sqlPieces.add(index2sql(index, node));
+  }
+
+  /**
+   * @param explainJson  the result of the ESTIMATED query of {@link #toSqlCount(String, CountStrategy, long)}
+   * @return the "Plan Rows" of the query plan
+   * @throws QueryValidationException if explainJson has no "Plan Rows"
+   */
+  public static long getEstimatedCount(String explainJson) throws QueryValidationException {
+    try {
+      JsonNode planRows = ObjectMapperTool.getMapper().readTree(explainJson).path(0).path("Plan").path("Plan Rows");
+      if (! planRows.isNumber()) {
+        throw new QueryValidationException("Plan Rows not found: " + explainJson);
       }
-      return String.join(" OR ", sqlPieces);
+      return planRows.asLong();
+    } catch (IOException e) {
+      throw new QueryValidationException(e);
     }
-    return index2sql(node.getIndex(), node);
   }
 
   /**
-   * Normalize a term for FT searching. Escape quotes, masking, etc
+   * Convert the CQL query into a SELECT statement that counts the matching records of a random
+   * sample of the table and scales the count to the complete table:
+   * <p>
+   * SELECT count(*) AS sample_count, round(count(*) * 100.0 / 1)::bigint AS count
+   * FROM users TABLESAMPLE SYSTEM (1) REPEATABLE (42) WHERE ...
+   * <p>
+   * The count is an estimate, its error is large if the sample has few matching records,
+   * SYSTEM sampling adds the error of the clustering of the records within the table blocks.
    *
-   * @param term
-   * @return
+   * @param cql  the query, sortBy is ignored
+   * @param tableSample  sampling method, percentage and seed
+   * @return SQL query
+   * @throws QueryValidationException on invalid query or if the JSONB field is not table qualified
    */
-  @SuppressWarnings({
-    "squid:ForLoopCounterChangedCheck",
-    // Yes, we skip the occasional character in the loop by incrementing i
-    "squid:S135"
-  // Yes, we have a few continue statements. Unlike what SQ says,
-  // refactoring the code to avoid that would make it much less
-  // readable.
+  public String toSqlSampleCount(String cql, TableSample tableSample) throws QueryValidationException {
+    String where = toSql(cql).getWhere();
+    return "SELECT count(*) AS sample_count, " + tableSample.scaleSql("count(*)") + " AS count"
+        + " FROM " + getTableName() + " " + tableSample + " WHERE " + where;
+  }
+
+  /**
+   * Convert the CQL query into a SELECT statement that returns one page and in the count column
+   * the total number of matching records, using a single round trip:
+   * <p>
+   * SELECT users.*, count(*) OVER () AS count FROM users WHERE ... ORDER BY ... LIMIT 10 OFFSET 20
+   * <p>
+   * The count is missing if the offset is beyond the last record.
+   *
+   * @param cql  the query to convert
+   * @param limit  maximum number of records to return
+   * @param offset  number of records to skip
+   * @return SQL query
+   * @throws QueryValidationException on invalid query or if the JSONB field is not table qualified
+   */
+  public String toSqlWithCount(String cql, int limit, int offset) throws QueryValidationException {
+    SqlSelect sqlSelect = toSql(cql);
+    String table = getTableName();
+    String orderBy = sqlSelect.getOrderBy().isEmpty() ? "" : " ORDER BY " + sqlSelect.getOrderBy();
+    return "SELECT " + table + ".*, count(*) OVER () AS count FROM " + table
+        + " WHERE " + sqlSelect.getWhere() + orderBy + " LIMIT " + limit + " OFFSET " + offset;
+  }
+
+  /**
+   * Convert several CQL queries against the table into a single SELECT statement so that a page
+   * with many widgets needs a single round trip. Each query becomes a UNION ALL branch with its
+   * own ORDER BY and LIMIT, the query column is the index of the query in the list and the position
+   * column is the position of the record within the query result:
+   * <p>
+   * SELECT * FROM (
+   * (SELECT 0 AS query, row_number() OVER (ORDER BY ...) AS position, count(*) OVER () AS count, users.*
+   * FROM users WHERE ... ORDER BY ... LIMIT 5)
+   * UNION ALL (SELECT 1 AS query, 0 AS position, c.count, users.* FROM (SELECT count(*) AS count
+   * FROM users WHERE ...) AS c LEFT JOIN users ON false)
+   * ) AS batch ORDER BY query, position
+   * <p>
+   * A limit of 0 returns the count only, in a single row with position 0 and NULL record columns.
+   * A query without records and a limit greater than 0 has no row.
+   *
+   * @param cqls  the queries to convert
+   * @param limits  maximum number of records of each query, 0 for the count only
+   * @param withCount  whether the count column contains the total number of matching records;
+   *     this needs to read all matching records, the count column is NULL if false
+   * @return SQL query
+   * @throws QueryValidationException on invalid query, negative limit, if the number of limits and
+   *     queries differ, or if the JSONB field is not table qualified
+   */
+  public String toSqlBatch(List<String> cqls, List<Integer> limits, boolean withCount)
+      throws QueryValidationException {
+
+    if (cqls.isEmpty() || cqls.size() != limits.size()) {
+      throw new QueryValidationException("Expected a limit for each of the " + cqls.size()
+          + " queries but got " + limits.size());
+    }
+    String table = getTableName();
+    List<String> branches = new ArrayList<>();
+    for (int i = 0; i < cqls.size(); i++) {
+      SqlSelect sqlSelect = toSql(cqls.get(i));
+      int limit = limits.get(i);
+      if (limit < 0) {
+        throw new QueryValidationException("Limit must not be negative: " + limit);
+      }
+      if (limit == 0) {
+        branches.add("(SELECT " + i + " AS query, 0 AS position, c.count, " + table + ".* FROM"
+            + " (SELECT count(*) AS count FROM " + table + " WHERE " + sqlSelect.getWhere() + ") AS c"
+            + " LEFT JOIN " + table + " ON false)");
+        continue;
+      }
+      String orderBy = sqlSelect.getOrderBy().isEmpty() ? "" : "ORDER BY " + sqlSelect.getOrderBy();
+      branches.add("(SELECT " + i + " AS query, row_number() OVER (" + orderBy + ") AS position, "
+          + (withCount ? "count(*) OVER ()" : "NULL::bigint") + " AS count, " + table + ".*"
+          + " FROM " + table + " WHERE " + sqlSelect.getWhere()
+          + (orderBy.isEmpty() ? "" : " " + orderBy) + " LIMIT " + limit + ")");
+    }
+    return "SELECT * FROM (" + String.join(" UNION ALL ", branches) + ") AS batch ORDER BY query, position";
+  }
+
+  /**
+   * Convert the CQL query into a SELECT statement that returns the most frequent values
+   * of each facet of the matching records, reading the matching records only once.
+   * <p>
+   * A facet is a field path like materialType or address.city; an array of strings
+   * is expanded if the path ends with [] like languages[]. The result has the columns facet,
+   * value and count, ordered by the facets list and the count. Example for materialType and
+   * languages[]:
+   * <p>
+   * SELECT facet, value, count FROM (SELECT facets.n, facets.facet, facets.value, count(*) AS count,
+   * row_number() OVER (PARTITION BY facets.n ORDER BY count(*) DESC, facets.value) AS rank
+   * FROM instance CROSS JOIN LATERAL (
+   * SELECT 0, 'materialType', instance.jsonb-&gt;&gt;'materialType'
+   * UNION ALL SELECT DISTINCT 1, 'languages[]', jsonb_array_elements_text(...)
+   * ) AS facets(n, facet, value) WHERE (...) AND facets.value IS NOT NULL
+   * GROUP BY facets.n, facets.facet, facets.value) AS counts WHERE rank &lt;= 5 ORDER BY n, count DESC, value
+   *
+   * @param cql  the query, sortBy is ignored
+   * @param facets  the field paths to count, names may contain A-Z, a-z, 0-9 and _ only
+   * @param limit  maximum number of values per facet, at least 1
+   * @return SQL query
+   * @throws QueryValidationException on invalid query, facet or limit, or if the JSONB field is not table qualified
+   */
+  public String toSqlFacets(String cql, List<String> facets, int limit) throws QueryValidationException {
+    if (facets.isEmpty()) {
+      throw new QueryValidationException("At least one facet is required");
+    }
+    if (limit < 1) {
+      throw new QueryValidationException("Facet limit must be at least 1: " + limit);
+    }
+    String where = toSql(cql).getWhere();
+    String table = getTableName();
+    List<String> selects = new ArrayList<>();
+    for (int i = 0; i < facets.size(); i++) {
+      String facet = facets.get(i);
+      if (! FACET.matcher(facet).matches()) {
+        throw new QueryValidationException("Invalid facet: " + facet);
+      }
+      String name = "'" + facet + "'";
+      if (facet.endsWith("[]")) {
+        String array = getIndexTextAndJsonValues(facet.substring(0, facet.length() - 2)).getIndexJson();
+        // each value only once per record; a non-array value has no elements
+        selects.add("SELECT DISTINCT " + i + ", " + name + ", jsonb_array_elements_text("
+            + "CASE WHEN jsonb_typeof(" + array + ") = 'array' THEN " + array + " END)");
+      } else {
+        selects.add("SELECT " + i + ", " + name + ", " + getIndexTextAndJsonValues(facet).getIndexText());
+      }
+    }
+    return "SELECT facet, value, count FROM (SELECT facets.n, facets.facet, facets.value, count(*) AS count,"
+        + " row_number() OVER (PARTITION BY facets.n ORDER BY count(*) DESC, facets.value) AS rank"
+        + " FROM " + table + " CROSS JOIN LATERAL (" + String.join(" UNION ALL ", selects)
+        + ") AS facets(n, facet, value) WHERE (" + where + ") AND facets.value IS NOT NULL"
+        + " GROUP BY facets.n, facets.facet, facets.value) AS counts"
+        + " WHERE rank <= " + limit + " ORDER BY n, count DESC, value";
+  }
+
+  /**
+   * Convert field paths into a JSONB object for the SELECT list so that only the requested
+   * fields are sent to the client. Example for id and holdings.barcode:
+   * <p>
+   * jsonb_build_object('id', instance.jsonb-&gt;'id', 'holdings.barcode', instance.jsonb-&gt;'holdings'-&gt;'barcode')
+   * <p>
+   * The keys are the field paths, a missing field has the value null.
+   *
+   * @param fields  field paths like CQL index names, may contain A-Z, a-z, 0-9, _ and . only
+   * @return SQL expression
+   * @throws QueryValidationException if fields is empty or contains an invalid field path
+   */
+  public String toSqlProjection(List<String> fields) throws QueryValidationException {
+    if (fields.isEmpty()) {
+      throw new QueryValidationException("At least one field is required");
+    }
+    List<String> objects = new ArrayList<>();
+    List<String> arguments = new ArrayList<>();
+    for (String field : fields) {
+      if (! FIELD_PATH.matcher(field).matches()) {
+        throw new QueryValidationException("Invalid field: " + field);
+      }
+      // Postgres functions have at most 100 arguments
+      if (arguments.size() == 100) {
+        objects.add("jsonb_build_object(" + String.join(", ", arguments) + ")");
+        arguments.clear();
+      }
+      arguments.add("'" + field + "'");
+      arguments.add(getIndexTextAndJsonValues(field).getIndexJson());
+    }
+    objects.add("jsonb_build_object(" + String.join(", ", arguments) + ")");
+    return String.join(" || ", objects);
+  }
+
+  /**
+   * Convert the CQL query into a complete SELECT statement that detoasts and decompresses the
+   * JSONB of each record only once, even if the query extracts many fields of it:
+   * <p>
+   * SELECT users.* FROM users CROSS JOIN LATERAL (SELECT users.jsonb || '{}'::jsonb AS jsonb OFFSET 0) AS detoasted
+   * WHERE detoasted.jsonb-&gt;&gt;'a' = ... AND detoasted.jsonb-&gt;&gt;'b' = ...
+   * <p>
+   * The || returns a detoasted copy, OFFSET 0 prevents Postgres from inlining the subquery into each
+   * expression. The expressions use the alias, therefore no expression index can be used; use this
+   * for queries that filter many fields of large records using a sequential scan.
+   * Requires JSON objects in the JSONB fields.
+   *
+   * @param cql  the query to convert
+   * @return SQL query
+   * @throws QueryValidationException on invalid query or if the JSONB fields are not in the same table
+   */
+  public String toSqlDetoastOnce(String cql) throws QueryValidationException {
+    // no candidate limit: the candidate subquery would get correlated with the alias
+    SqlSelect sqlSelect = toSql(cql, 0);
+    String table = getTableName();
+    String where = sqlSelect.getWhere();
+    String orderBy = sqlSelect.getOrderBy();
+    List<String> columns = new ArrayList<>();
+    for (String field : jsonField != null ? Collections.singletonList(jsonField) : jsonFields) {
+      if (! field.startsWith(table + ".")) {
+        throw new QueryValidationException("JSONB field " + field + " is not in table " + table);
+      }
+      String column = field.substring(table.length() + 1);
+      columns.add(field + " || '{}'::jsonb AS " + column);
+      where = replaceOutsideLiterals(where, field, "detoasted." + column);
+      orderBy = replaceOutsideLiterals(orderBy, field, "detoasted." + column);
+    }
+    return "SELECT " + table + ".* FROM " + table
+        + " CROSS JOIN LATERAL (SELECT " + String.join(", ", columns) + " OFFSET 0) AS detoasted"
+        + " WHERE " + where + (orderBy.isEmpty() ? "" : " ORDER BY " + orderBy);
+  }
+
+  /**
+   * Replace each occurrence of the identifier that is not within a single quoted string literal
+   * and not part of a longer identifier.
+   *
+   * @param sql  where to replace
+   * @param identifier  what to replace
+   * @param replacement  the new identifier
+   * @return sql with replacements
+   */
+  private static String replaceOutsideLiterals(String sql, String identifier, String replacement) {
+    StringBuilder s = new StringBuilder();
+    boolean quoted = false;
+    int i = 0;
+    while (i < sql.length()) {
+      char c = sql.charAt(i);
+      if (! quoted && sql.startsWith(identifier, i)
+          && (i == 0 || ! isIdentifierChar(sql.charAt(i - 1)))
+          && (i + identifier.length() == sql.length() || ! isIdentifierChar(sql.charAt(i + identifier.length())))) {
+        s.append(replacement);
+        i += identifier.length();
+        continue;
+      }
+      if (c == '\'') {
+        // a doubled '' within a literal toggles twice
+        quoted = ! quoted;
+      }
+      s.append(c);
+      i++;
+    }
+    return s.toString();
+  }
+
+  private static boolean isIdentifierChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+  }
+
+  /**
+   * @return the table name of the (first) JSONB field, for example tenant1.users for tenant1.users.jsonb
+   * @throws QueryValidationException if the JSONB field is not table qualified
+   */
+  private String getTableName() throws QueryValidationException {
+    String field = getDefaultJsonField();
+    if (! field.contains(".")) {
+      throw new QueryValidationException("JSONB field needs a table name prefix: " + field);
+    }
+    return field.substring(0, field.lastIndexOf('.'));
+  }
+
+  /**
+   * @return pg() of the subtree; if sorted by relevance the ts_rank of each full text search is added to ranks
+   */
+  private String pgSubtree(CQLSortNode node, List<String> ranks) throws QueryValidationException {
+    CQLNode subtree = node.getSubtree();
+    return pg(subtree, jsonPaths(subtree), hasRelevanceSort(node) ? ranks : null);
+  }
+
+  /**
+   * The ORDER BY expressions of the sortBy indexes. cql.relevance is skipped if ranks is empty.
+   */
+  private List<SortKey> sortKeys(CQLSortNode node, List<String> ranks) throws QueryValidationException {
+    List<SortKey> sortKeys = new ArrayList<>();
+    for (ModifierSet modifierSet : node.getSortIndexes()) {
+      CqlModifiers modifiers = new CqlModifiers(modifierSet);
+      boolean descending = modifiers.getCqlSort() == CqlSort.DESCENDING;
+
+      if (modifierSet.getBase().equals("id")) {
+        sortKeys.add(new SortKey(getPkColumnName(), descending, SortKeyType.ID));
+        continue;
+      }
+
+      if (modifierSet.getBase().equalsIgnoreCase(RELEVANCE)) {
+        if (! ranks.isEmpty()) {
+          // best match first
+          sortKeys.add(new SortKey("(" + String.join(" + ", ranks) + ")", true, SortKeyType.RELEVANCE));
+        }
+        continue;
+      }
+
+      IndexTextAndJsonValues vals = getIndexTextAndJsonValues(modifierSet.getBase());
+
+      // if sort field is marked explicitly as number type, or the record schema says so
+      if (modifiers.getCqlTermFormat() == CqlTermFormat.NUMBER
+          || isNumberType(fieldType(modifierSet.getBase()))) {
+        sortKeys.add(new SortKey(vals.getIndexJson(), descending, SortKeyType.NUMBER));
+        continue;
+      }
+
+      // We assume that a CREATE INDEX for this has been installed.
+      sortKeys.add(new SortKey(wrapInLowerUnaccent(vals.getIndexText()), descending, SortKeyType.TEXT));
+    }
+    return sortKeys;
+  }
+
+  private static String orderBy(List<SortKey> sortKeys) {
+    List<String> order = new ArrayList<>();
+    for (SortKey sortKey : sortKeys) {
+      // ASC not needed, it's Postgres' default
+      order.add(sortKey.expression + (sortKey.descending ? " DESC" : ""));
+    }
+    return String.join(", ", order);
+  }
+
+  /**
+   * SQL condition that matches all records that come after the literals in the sortKeys order.
+   * <p>
+   * Postgres sorts NULL after any value, NULL comes last when ascending and first when descending.
+   *
+   * @param sortKeys  ORDER BY expressions, the last is the unique primary key
+   * @param literals  SQL literal for each sort key, null for NULL
+   */
+  private static String keysetCondition(List<SortKey> sortKeys, List<String> literals) {
+    boolean sameDirection = true;
+    for (SortKey sortKey : sortKeys) {
+      sameDirection &= sortKey.descending == sortKeys.get(0).descending;
+    }
+    List<String> or = new ArrayList<>();
+    if (sameDirection && ! literals.contains(null)) {
+      List<String> expressions = new ArrayList<>();
+      for (SortKey sortKey : sortKeys) {
+        expressions.add(sortKey.expression);
+      }
+      boolean descending = sortKeys.get(0).descending;
+      or.add(row(expressions) + (descending ? " < " : " > ") + row(literals));
+      if (! descending) {
+        // the row value comparison yields NULL if the first differing expression is NULL
+        for (int i = 0; i < sortKeys.size(); i++) {
+          if (sortKeys.get(i).type != SortKeyType.ID) {
+            or.add(keysetEquals(sortKeys, literals, i) + sortKeys.get(i).expression + " IS NULL");
+          }
+        }
+      }
+    } else {
+      for (int i = 0; i < sortKeys.size(); i++) {
+        String after = keysetAfter(sortKeys.get(i), literals.get(i));
+        if (after != null) {
+          or.add(keysetEquals(sortKeys, literals, i) + after);
+        }
+      }
+    }
+    if (or.isEmpty()) {
+      return "FALSE";
+    }
+    return "(" + String.join(" OR ", or) + ")";
+  }
+
+  private static String row(List<String> list) {
+    if (list.size() == 1) {
+      return list.get(0);
+    }
+    return "(" + String.join(", ", list) + ")";
+  }
+
+  /**
+   * @return "k0 = l0 AND k1 IS NULL AND ... AND " for the first n sort keys
+   */
+  private static String keysetEquals(List<SortKey> sortKeys, List<String> literals, int n) {
+    StringBuilder s = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      s.append(sortKeys.get(i).expression);
+      if (literals.get(i) == null) {
+        s.append(" IS NULL AND ");
+      } else {
+        s.append(" = ").append(literals.get(i)).append(" AND ");
+      }
+    }
+    return s.toString();
+  }
+
+  /**
+   * @return condition for sortKey values after literal, null if there are none
+   */
+  private static String keysetAfter(SortKey sortKey, String literal) {
+    if (sortKey.descending) {
+      if (literal == null) {
+        return sortKey.expression + " IS NOT NULL";
+      }
+      return sortKey.expression + " < " + literal;
+    }
+    if (literal == null) {
+      return null;
+    }
+    if (sortKey.type == SortKeyType.ID) {
+      return sortKey.expression + " > " + literal;
+    }
+    return "(" + sortKey.expression + " > " + literal + " OR " + sortKey.expression + " IS NULL)";
+  }
+
+  private enum SortKeyType { ID, TEXT, NUMBER, RELEVANCE }
+
+  /** ORDER BY expression of a sortBy index */
+  private static class SortKey {
+    private final String expression;
+    private final boolean descending;
+    private final SortKeyType type;
+
+    SortKey(String expression, boolean descending, SortKeyType type) {
+      this.expression = expression;
+      this.descending = descending;
+      this.type = type;
+    }
+
+    /**
+     * @param value  value as returned by -&gt;&gt;, or null
+     * @return SQL literal to compare with the expression, or null if value is null
+     */
+    String literal(String value) throws QueryValidationException {
+      if (value == null) {
+        return null;
+      }
+      String quoted = "'" + value.replace("'", "''") + "'";
+      switch (type) {
+      case ID:
+        return quoted;
+      case NUMBER:
+        if (! Cql2SqlUtil.isPostgresNumber(value)) {
+          throw new QueryValidationException("Sort value is not a number: " + value);
+        }
+        return quoted;
+      default:
+        return wrapInLowerUnaccent(quoted);
+      }
+    }
+  }
+
+  private static boolean hasRelevanceSort(CQLSortNode node) {
+    for (ModifierSet modifierSet : node.getSortIndexes()) {
+      if (modifierSet.getBase().equalsIgnoreCase(RELEVANCE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Restrict where to the first limit matching records so that at most that many
+   * records get ranked. Example for limit 1000:
+   * <p>
+   * id IN (SELECT id FROM users WHERE to_tsvector(...) @@ to_tsquery(...) LIMIT 1000)
+   *
+   * @param where  the WHERE clause
+   * @param limit  maximum number of records to rank, 0 for no limit
+   * @return the restricted WHERE clause, or where if there is no limit or no table name
+   */
+  private String limitRelevanceCandidates(String where, int limit) throws QueryValidationException {
+    if (limit <= 0 || ! getDefaultJsonField().contains(".")) {
+      return where;
+    }
+    String table = getTableName();
+    String pk = getPkColumnName();
+    return pk + " IN (SELECT " + pk + " FROM " + table + " WHERE " + where
+        + " LIMIT " + limit + ")";
+  }
+
+  String getPkColumnName() {
+    if (dbTable == null) {
+      return "id";
+    }
+    return StringUtils.defaultIfBlank(dbTable.getPkColumnName(), "id");
+  }
+
+  private static String sqlOperator(CQLBooleanNode node) throws CQLFeatureUnsupportedException {
+    if (node instanceof CQLAndNode) {
+      return "AND";
+    }
+    if (node instanceof CQLOrNode) {
+      return "OR";
+    }
+    if (node instanceof CQLNotNode) {
+      // CQL "NOT" means SQL "AND NOT", see section "7. Boolean Operators" in
+      // https://www.loc.gov/standards/sru/cql/spec.html
+      return "AND NOT";
+    }
+    throw createUnsupportedException(node);
+  }
+
+  private String pg(CQLBooleanNode node, Map<CQLNode, String []> jsonPaths, List<String> ranks)
+      throws QueryValidationException {
+
+    String operator = sqlOperator(node);
+    String isNotTrue = "";
+
+    CQLNode simplified = simplifiedOr(node);
+    if (simplified != null) {
+      logger.log(Level.FINE, "pgFT(): Simplifying =* OR =* ");
+      return pg(simplified, jsonPaths, ranks);
+    }
+
+    if ("AND NOT".equals(operator)) {
+      if (isAllRecords(node.getLeftOperand())) {
+        return pgNot(node.getRightOperand(), jsonPaths, ranks);
+      }
+      operator = "AND (";
+      isNotTrue = ") IS NOT TRUE";
+      // NOT TRUE is (FALSE or NULL) to catch the NULL case when the field does not exist.
+      // This completely inverts the right operand.
+    }
+
+    return "(" + pg(node.getLeftOperand(), jsonPaths, ranks) + ") "
+        + operator
+        + " (" + pg(node.getRightOperand(), jsonPaths, ranks) + isNotTrue + ")";
+  }
+
+  /**
+   * Special case for the query the UI uses most often, before the user has
+   * typed in anything: title=* OR contributors*= OR identifier=*
+   *
+   * @return the left operand if node is an OR whose right operand is a =* term, otherwise null
+   */
+  private static CQLNode simplifiedOr(CQLBooleanNode node) {
+    if (node instanceof CQLOrNode
+      && node.getRightOperand().getClass() == CQLTermNode.class) {
+      CQLTermNode r = (CQLTermNode) (node.getRightOperand());
+      if ("*".equals(r.getTerm()) && "=".equals(r.getRelation().getBase())) {
+        return node.getLeftOperand();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return true if node is a cql.allRecords term
+   */
+  private static boolean isAllRecords(CQLNode node) {
+    return node instanceof CQLTermNode
+        && "cql.allRecords".equalsIgnoreCase(((CQLTermNode) node).getIndex());
+  }
+
+  /**
+   * SQL for cql.allRecords=1 NOT node. A check whether the field is defined, name="",
+   * becomes IS NULL.
+   *
+   * @param node  the node to negate
+   * @param jsonPaths  see {@link #jsonPath(CQLNode, Map)}
+   * @param ranks  see {@link #pg(CQLNode, Map, List)}
+   * @return SQL expression
+   * @throws QueryValidationException
+   */
+  private String pgNot(CQLNode node, Map<CQLNode, String []> jsonPaths, List<String> ranks)
+      throws QueryValidationException {
+
+    if (node instanceof CQLTermNode) {
+      String index = definedCheckIndexText((CQLTermNode) node);
+      if (index != null) {
+        return index + " IS NULL";
+      }
+    }
+    // NOT TRUE is (FALSE or NULL) to catch the NULL case when the field does not exist.
+    return "(" + pg(node, jsonPaths, ranks) + ") IS NOT TRUE";
+  }
+
+  /**
+   * If node checks whether the field is defined, like name="", return the SQL term of the field.
+   *
+   * @param node  the node to check
+   * @return SQL term of type text, or null if node is not such a check
+   * @throws QueryValidationException
+   */
+  private String definedCheckIndexText(CQLTermNode node) throws QueryValidationException {
+    String index = node.getIndex();
+    if ("id".equals(index) || index.toLowerCase().startsWith("cql.")
+        || ! "=".equals(node.getRelation().getBase())
+        || ! node.getTerm().replaceAll(" +\\*", "").trim().isEmpty()) {
+      return null;
+    }
+    CqlModifiers modifiers = new CqlModifiers(node);
+    if (modifiers.getCqlTermFormat() != CqlTermFormat.STRING
+        || modifiers.getCqlCase() != CqlCase.IGNORE_CASE
+        || modifiers.getCqlAccents() != CqlAccents.IGNORE_ACCENTS
+        || ! modifiers.getRelationModifiers().isEmpty()
+        || isMultiFieldIndex(index)) {
+      return null;
+    }
+    return getIndexTextAndJsonValues(index).getIndexText();
+  }
+
+  /**
+   * Convert index name to SQL term of type text.
+   * Example result for field=user and index=foo.bar:
+   * user->'foo'->>'bar'
+   * @param jsonField
+   * @param index name to convert
+   *
+   * @return SQL term
+   */
+  private static String index2sqlText(String jsonField, String index) {
+    String result = jsonField + "->'" + index.replace(".", "'->'") + "'";
+    int lastArrow = result.lastIndexOf("->'");
+    return result.substring(0,  lastArrow) + "->>" + result.substring(lastArrow + 2);
+  }
+
+  /**
+   * Convert index name to SQL term of type json.
+   * Example result for field=user and index=foo.bar:
+   * user->'foo'->'bar'
+   * @param jsonField
+   * @param index name to convert
+   *
+   * @return SQL term
+   */
+  private static String index2sqlJson(String jsonField, String index) {
+    return jsonField + "->'" + index.replace(".", "'->'") + "'";
+  }
+
+  private IndexTextAndJsonValues getIndexTextAndJsonValues(String index)
+      throws QueryValidationException {
+    if (jsonField == null) {
+      return multiFieldProcessing(index);
+    }
+    IndexTextAndJsonValues vals = new IndexTextAndJsonValues();
+    vals.setIndexJson(index2sqlJson(this.jsonField, index));
+    vals.setIndexText(index2sqlText(this.jsonField, index));
+    return vals;
+  }
+
+  /**
+   * @return the JSONB field used for an index without JSONB field prefix
+   */
+  private String getDefaultJsonField() {
+    if (jsonField != null) {
+      return jsonField;
+    }
+    return jsonFields.get(0);
+  }
+
+  private IndexTextAndJsonValues multiFieldProcessing( String index ) throws QueryValidationException {
+    IndexTextAndJsonValues vals = new IndexTextAndJsonValues();
+
+    // processing for case where index is prefixed with json field name
+    for (String f : jsonFields) {
+      if (index.startsWith(f+'.')) {
+        String indexTermWithinField = index.substring(f.length()+1);
+        vals.setIndexJson(index2sqlJson(f, indexTermWithinField));
+        vals.setIndexText(index2sqlText(f, indexTermWithinField));
+        return vals;
+      }
+    }
+
+    // if no json field name prefix is found, the default field name gets applied.
+    String defaultJsonField = this.jsonFields.get(0);
+    vals.setIndexJson(index2sqlJson(defaultJsonField, index));
+    vals.setIndexText(index2sqlText(defaultJsonField, index));
+    return vals;
+  }
+
+  private String pg(CQLTermNode node, List<String> ranks) throws QueryValidationException {
+    if ("cql.allRecords".equalsIgnoreCase(node.getIndex())) {
+      return "true";
+    }
+    if ("cql.serverChoice".equalsIgnoreCase(node.getIndex())) {
+      if (serverChoiceIndexes.isEmpty()) {
+        throw new QueryValidationException("cql.serverChoice requested, but no serverChoiceIndexes defined.");
+      }
+      String multiFieldIndex = DbSchemaUtils.getFullTextMultiFieldIndex(
+          dbSchemaJson, CqlUtils.getTableNameFromCqlField(getDefaultJsonField()), serverChoiceIndexes);
+      if (multiFieldIndex != null) {
+        String sql = queryByMultiFieldFt(getIndexTextAndJsonValues(multiFieldIndex), serverChoiceIndexes, node, ranks);
+        if (sql != null) {
+          return sql;
+        }
+      }
+      List<String> sqlPieces = new ArrayList<>();
+      for(String index : serverChoiceIndexes) {
+        sqlPieces.add(index2sql(index, node, ranks));
+      }
+      return String.join(" OR ", sqlPieces);
+    }
+    String exists = queryByForeignKey(node);
+    if (exists != null) {
+      return exists;
+    }
+    return withPartitionKey(node, index2sql(node.getIndex(), node, ranks));
+  }
+
+  /**
+   * Append the partition key predicate, if any, see {@link #partitionKeyPredicate(CQLTermNode)}.
+   */
+  private String withPartitionKey(CQLTermNode node, String sql) throws QueryValidationException {
+    String predicate = partitionKeyPredicate(node);
+    if (predicate == null) {
+      return sql;
+    }
+    return "(" + sql + ") AND " + predicate;
+  }
+
+  /**
+   * Predicate on the partition key expression of the table that the node implies so that Postgres
+   * can prune partitions at plan time.
+   * <p>
+   * The partition key is declared in schema.json, the expression must sort like the field:
+   * <pre>
+   * "tables": [ { "tableName": "audit", "partitionKey": { "fieldName": "date", "expression": "date_key" } } ]
+   * </pre>
+   * For date&gt;=2020-01-01 this returns date_key &gt;= '2020-01-01', see {@link #impliedComparisons(CQLTermNode)}.
+   *
+   * @return the predicate, or null if there is no partition key or node doesn't imply a predicate
+   */
+  private String partitionKeyPredicate(CQLTermNode node) throws QueryValidationException {
+    String index = node.getIndex();
+    if (index.toLowerCase().startsWith("cql.")) {
+      return null;
+    }
+    String expression = DbSchemaUtils.getPartitionKeyExpression(
+        dbSchemaJson, getIndexTextAndJsonValues(index).getIndexJson());
+    if (expression == null) {
+      return null;
+    }
+    List<String []> comparisons = impliedComparisons(node);
+    if (comparisons == null) {
+      return null;
+    }
+    List<String> predicates = new ArrayList<>();
+    for (String [] comparison : comparisons) {
+      predicates.add(expression + " " + comparison[0] + " '" + comparison[1].replace("'", "''") + "'");
+    }
+    return String.join(" AND ", predicates);
+  }
+
+  /**
+   * The comparisons of the field value that the node implies. Equality is used for ==,
+   * and for = on number and date fields. Case and accent insensitive == needs a term without letters
+   * or /respectCase/respectAccents. For id it supports exact UUIDs, right truncation and comparisons,
+   * the UUIDs are lower case. The term of a date or datetime field is normalized like in the
+   * query, see {@link #dateComparisons(String, String, String)}.
+   *
+   * @return pairs of comparator (=, &lt;, &gt;, &lt;=, &gt;=) and value that all hold, or null if node
+   *     doesn't imply any
+   */
+  private List<String []> impliedComparisons(CQLTermNode node) throws QueryValidationException {
+    String index = node.getIndex();
+    String comparator = node.getRelation().getBase().toLowerCase();
+    String term = node.getTerm();
+    if ("id".equals(index)) {
+      return impliedIdComparisons(comparator, term.toLowerCase());
+    }
+    if (term.isEmpty() || Cql2SqlUtil.hasCqlWildcard(term)) {
+      return null;
+    }
+    String value = Cql2SqlUtil.cql2string(term);
+    CqlModifiers modifiers = new CqlModifiers(node);
+    String type = fieldType(index);
+    boolean number = isNumberType(type) || modifiers.getCqlTermFormat() == CqlTermFormat.NUMBER;
+    boolean date = "date".equals(type) || "datetime".equals(type);
+    if ((number && ! Cql2SqlUtil.isPostgresNumber(term)) || (date && ! Cql2SqlUtil.isIsoDate(term))) {
+      return null;
+    }
+    if (date) {
+      switch (comparator) {
+      case "==":
+      case "=":
+        return dateComparisons(type, "=", term);
+      case "<":
+      case ">":
+      case "<=":
+      case ">=":
+        return dateComparisons(type, comparator, term);
+      default:
+        return null;
+      }
+    }
+    switch (comparator) {
+    case "==":
+      if (number || ! term.matches(".*\\p{L}.*")
+          || (modifiers.getCqlCase() == CqlCase.RESPECT_CASE
+              && modifiers.getCqlAccents() == CqlAccents.RESPECT_ACCENTS)) {
+        return Collections.singletonList(new String [] { "=", value });
+      }
+      return null;
+    case "=":
+      return number ? Collections.singletonList(new String [] { "=", value }) : null;
+    case "<":
+    case ">":
+    case "<=":
+    case ">=":
+      return Collections.singletonList(new String [] { comparator, value });
+    default:
+      return null;
+    }
+  }
+
+  private static List<String []> impliedIdComparisons(String comparator, String term) {
+    switch (comparator) {
+    case "<":
+    case ">":
+    case "<=":
+    case ">=":
+      return term.matches(UUID_PATTERN) ? Collections.singletonList(new String [] { comparator, term }) : null;
+    case "=":
+    case "==":
+      if (term.matches(UUID_PATTERN)) {
+        return Collections.singletonList(new String [] { "=", term });
+      }
+      if (! term.endsWith("*") || term.equals("*")) {
+        return null;
+      }
+      String [] range = uuidRange(term.substring(0, term.length() - 1));
+      if (range == null) {
+        return null;
+      }
+      return Arrays.asList(new String [] { ">=", range[0] }, new String [] { "<=", range[1] });
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * Index of a field of another table like items.jsonb.barcode where schema.json has a foreign key
+   * from this table to the other table or from the other table to this table. The index must start
+   * with the table name and jsonb, the JSONB column that RMB creates for each schema.json table.
+   *
+   * @return the index split into table, JSONB field and field path, or null if index is not such an index
+   */
+  private String [] foreignKeyIndex(String index) {
+    String [] parts = index.split("\\.", 3);
+    if (parts.length < 3 || ! RMB_JSONB_COLUMN.equals(parts[1])) {
+      return null;
+    }
+    String table = CqlUtils.getTableNameFromCqlField(getDefaultJsonField());
+    if (table == null || parts[0].equalsIgnoreCase(table)) {
+      return null;
+    }
+    if (DbSchemaUtils.getForeignKeyFieldName(dbSchemaJson, table, parts[0]) == null
+        && DbSchemaUtils.getForeignKeyFieldName(dbSchemaJson, parts[0], table) == null) {
+      return null;
+    }
+    return parts;
+  }
+
+  /**
+   * Search a field of another table using a correlated EXISTS semi-join along the foreign key, see
+   * {@link #foreignKeyIndex(String)}. The join uses the UUID column that RMB creates for the foreignKeys
+   * entry, it has the fieldName as column name and references the primary key of the target table.
+   * Example for loan with foreign key itemId to item and item.jsonb.barcode==X:
+   * <p>
+   * EXISTS (SELECT 1 FROM item WHERE loan.itemId = item.id AND (... item.jsonb-&gt;&gt;'barcode' ...))
+   * <p>
+   * Example for a foreign key from the other table to this table:
+   * <p>
+   * EXISTS (SELECT 1 FROM loan WHERE loan.itemId = item.id AND (...))
+   *
+   * @return SQL expression, or null if the index is not a field of another table
+   * @throws QueryValidationException
+   */
+  private String queryByForeignKey(CQLTermNode node) throws QueryValidationException {
+    String [] parts = foreignKeyIndex(node.getIndex());
+    if (parts == null) {
+      return null;
+    }
+    String tableName = CqlUtils.getTableNameFromCqlField(getDefaultJsonField());
+    String table = getTableName();
+    // same schema (tenant) as this table
+    String otherTable = table.substring(0, table.length() - tableName.length()) + parts[0];
+    CQL2PgJSON other;
+    try {
+      other = new CQL2PgJSON(this, otherTable + "." + parts[1]);
+    } catch (FieldException e) {
+      throw new QueryValidationException(e);
+    }
+    String predicate = other.pg(new CQLTermNode(parts[2], node.getRelation(), node.getTerm()), null);
+    String foreignKey = DbSchemaUtils.getForeignKeyFieldName(dbSchemaJson, tableName, parts[0]);
+    String join;
+    if (foreignKey != null) {
+      join = table + "." + foreignKey + " = " + otherTable + "." + other.getPkColumnName();
+    } else {
+      foreignKey = DbSchemaUtils.getForeignKeyFieldName(dbSchemaJson, parts[0], tableName);
+      join = otherTable + "." + foreignKey + " = " + table + "." + getPkColumnName();
+    }
+    return "EXISTS (SELECT 1 FROM " + otherTable + " WHERE " + join + " AND (" + predicate + "))";
+  }
+
+  /**
+   * Normalize a term for FT searching. Escape quotes, masking, etc
+   *
+   * @param term
+   * @return
+   */
+  @SuppressWarnings({
+    "squid:ForLoopCounterChangedCheck",
+    // Yes, we skip the occasional character in the loop by incrementing i
+    "squid:S135"
+  // Yes, we have a few continue statements. Unlike what SQ says,
+  // refactoring the code to avoid that would make it much less
+  // readable.
   })
   private static String fTTerm(String term) throws QueryValidationException {
     StringBuilder res = new StringBuilder();
@@ -573,8 +1878,27 @@ public class CQL2PgJSON {
    * @return SQL where clause component for this term
    * @throws QueryValidationException
    */
+  private static final String UUID_PATTERN = "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$";
+
+  /**
+   * The lowest and the highest UUID that starts with truncTerm.
+   *
+   * @param truncTerm  the id term without the trailing '*'
+   * @return lo and hi, or null if truncTerm is not the start of a valid UUID
+   */
+  private static String [] uuidRange(String truncTerm) {
+    String lo = new StringBuilder("00000000-0000-0000-0000-000000000000")
+      .replace(0, truncTerm.length(), truncTerm).toString();
+    String hi = new StringBuilder("ffffffff-ffff-ffff-ffff-ffffffffffff")
+      .replace(0, truncTerm.length(), truncTerm).toString();
+    if (!lo.matches(UUID_PATTERN) || !hi.matches(UUID_PATTERN)) {
+      return null;
+    }
+    return new String [] { lo, hi };
+  }
+
   private String pgId(CQLTermNode node) throws QueryValidationException {
-    final String uuidPattern = "^[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}$";
+    final String uuidPattern = UUID_PATTERN;
     String pkColumnName = getPkColumnName();
     String comparator = StringUtils.defaultString(node.getRelation().getBase());
     if (!node.getRelation().getModifiers().isEmpty()) {
@@ -622,45 +1946,176 @@ public class CQL2PgJSON {
     if (truncTerm.contains("*")) { // any remaining '*' is an error
       throw new QueryValidationException("CQL: only right truncation supported for id:  " + term);
     }
-    String lo = new StringBuilder("00000000-0000-0000-0000-000000000000")
-      .replace(0, truncTerm.length(), truncTerm).toString();
-    String hi = new StringBuilder("ffffffff-ffff-ffff-ffff-ffffffffffff")
-      .replace(0, truncTerm.length(), truncTerm).toString();
-    if (!lo.matches(uuidPattern) || !hi.matches(uuidPattern)) {
+    String [] range = uuidRange(truncTerm);
+    if (range == null) {
       // avoid SQL injection, don't put term into comment
       return equals ? "false /* id == invalid UUID */"
                     : "true /* id <> invalid UUID */";
     }
-    if (equals) {
-      return "(" + pkColumnName + ">='" + lo + "'"
-        + " and " + pkColumnName + "<='" + hi + "')";
-    } else {
-      return "(" + pkColumnName + "<'" + lo + "'"
-          + " or " + pkColumnName + ">'" + hi + "')";
+    String lo = range[0];
+    String hi = range[1];
+    if (equals) {
+      return "(" + pkColumnName + ">='" + lo + "'"
+        + " and " + pkColumnName + "<='" + hi + "')";
+    } else {
+      return "(" + pkColumnName + "<'" + lo + "'"
+          + " or " + pkColumnName + ">'" + hi + "')";
+    }
+  }
+
+  /**
+   * Create an SQL expression where index is applied to all matches.
+   *
+   * @param index index to use
+   * @param node CQLTermNode to use
+   * @param ranks  collects the ts_rank of each full text search, null if not sorted by relevance
+   *
+   * @return SQL expression
+   * @throws QueryValidationException
+   */
+  private String index2sql(String index, CQLTermNode node, List<String> ranks) throws QueryValidationException {
+
+    // special handling of id search (re-use existing code)
+    if ("id".equals(index)) {
+      return pgId(node);
+    }
+
+    IndexTextAndJsonValues vals = getIndexTextAndJsonValues(index);
+
+    List<String> multiFieldNames = DbSchemaUtils.getFullTextMultiFieldNames(dbSchemaJson, vals.getIndexJson());
+    if (! multiFieldNames.isEmpty() && ! multiFieldNames.contains(index)) {
+      return queryByMultiField(vals, multiFieldNames, node, ranks);
+    }
+
+    DbIndex dbIndex = DbSchemaUtils.getDbIndex(dbSchema, vals.getIndexJson());
+
+    CqlModifiers modifiers = new CqlModifiers(node);
+    String comparator = node.getRelation().getBase().toLowerCase();
+
+    if (! modifiers.getRelationModifiers().isEmpty()) {
+      return queryByArrayElement(dbIndex, vals, node, comparator, modifiers, ranks);
+    }
+
+    String emptySql = queryByEmptyArray(vals, node, comparator);
+    if (emptySql != null) {
+      return emptySql;
+    }
+
+    String typedSql = queryByFieldType(index, vals, node, comparator, modifiers);
+    if (typedSql != null) {
+      return typedSql;
+    }
+
+    if ("==".equals(comparator)) {
+      String sql = queryByContainment(vals, node, modifiers);
+      if (sql != null) {
+        return sql;
+      }
+    }
+
+    return queryByRelation(dbIndex, vals, node, comparator, modifiers, ranks);
+  }
+
+  /**
+   * @return true if schema.json declares index as combined multi-field full text index
+   * @throws QueryValidationException
+   */
+  private boolean isMultiFieldIndex(String index) throws QueryValidationException {
+    return ! DbSchemaUtils.getFullTextMultiFieldNames(dbSchemaJson, getIndexTextAndJsonValues(index).getIndexJson())
+        .isEmpty();
+  }
+
+  /**
+   * Create an SQL expression for an index that schema.json declares as combined multi-field full text index.
+   * A full text relation uses the combined index, any other relation is the OR of the relation on each field.
+   *
+   * @param vals  the combined index
+   * @param fieldNames  the fields of the combined index
+   * @param node
+   * @param ranks  see {@link #index2sql(String, CQLTermNode, List)}
+   * @return SQL expression
+   * @throws QueryValidationException
+   */
+  private String queryByMultiField(IndexTextAndJsonValues vals, List<String> fieldNames, CQLTermNode node,
+      List<String> ranks) throws QueryValidationException {
+
+    String sql = queryByMultiFieldFt(vals, fieldNames, node, ranks);
+    if (sql != null) {
+      return sql;
+    }
+    List<String> sqlPieces = new ArrayList<>();
+    for (String fieldName : fieldNames) {
+      sqlPieces.add(index2sql(fieldName, node, ranks));
+    }
+    return String.join(" OR ", sqlPieces);
+  }
+
+  /**
+   * Create a full text SQL expression against the concatenation of the fields, this matches
+   * a combined multi-field full text index so that a single index probe is needed.
+   * Note that an adj phrase may span the boundary of two fields.
+   * <p>
+   * Example for fields title and contributors:
+   * to_tsvector('simple', f_unaccent(coalesce(jsonb-&gt;&gt;'title', '') || ' ' || coalesce(jsonb-&gt;&gt;'contributors', '')))
+   * &#64;&#64; to_tsquery('simple', f_unaccent('potter'))
+   *
+   * @param vals  the combined index, used for the dictionary lookup
+   * @param fieldNames  the fields of the combined index
+   * @param node
+   * @param ranks  see {@link #index2sql(String, CQLTermNode, List)}
+   * @return SQL expression, or null if node is not a full text search
+   * @throws QueryValidationException
+   */
+  private String queryByMultiFieldFt(IndexTextAndJsonValues vals, List<String> fieldNames, CQLTermNode node,
+      List<String> ranks) throws QueryValidationException {
+
+    CqlModifiers modifiers = new CqlModifiers(node);
+    String comparator = node.getRelation().getBase().toLowerCase();
+    switch (comparator) {
+    case "=":
+      if (CqlTermFormat.STRING != modifiers.getCqlTermFormat()
+          || CqlAccents.IGNORE_ACCENTS != modifiers.getCqlAccents()
+          || CqlCase.IGNORE_CASE != modifiers.getCqlCase()) {
+        return null;
+      }
+      break;
+    case "adj":
+    case "all":
+    case "any":
+      break;
+    default:
+      return null;
+    }
+    // "" checks whether any of the fields is defined, the concatenation is always defined
+    if (! modifiers.getRelationModifiers().isEmpty()
+        || node.getTerm().replaceAll(" +\\*", "").trim().isEmpty()) {
+      return null;
     }
+
+    List<String> texts = new ArrayList<>();
+    for (String fieldName : fieldNames) {
+      texts.add("coalesce(" + getIndexTextAndJsonValues(fieldName).getIndexText() + ", '')");
+    }
+    IndexTextAndJsonValues combined = new IndexTextAndJsonValues();
+    combined.setIndexJson(vals.getIndexJson());
+    combined.setIndexText(String.join(" || ' ' || ", texts));
+    return queryByFt(true, combined, node, comparator, modifiers, ranks);
   }
 
   /**
-   * Create an SQL expression where index is applied to all matches.
-   *
-   * @param index index to use
-   * @param node CQLTermNode to use
+   * Create an SQL expression for the relation, choosing the query syntax by relation and modifiers.
    *
+   * @param dbIndex
+   * @param vals
+   * @param node
+   * @param comparator
+   * @param modifiers
+   * @param ranks  see {@link #index2sql(String, CQLTermNode, List)}
    * @return SQL expression
    * @throws QueryValidationException
    */
-  private String index2sql(String index, CQLTermNode node) throws QueryValidationException {
-
-    // special handling of id search (re-use existing code)
-    if ("id".equals(index)) {
-      return pgId(node);
-    }
-
-    IndexTextAndJsonValues vals = getIndexTextAndJsonValues(index);
-    DbIndex dbIndex = DbSchemaUtils.getDbIndex(dbSchema, vals.getIndexJson());
-
-    CqlModifiers modifiers = new CqlModifiers(node);
-    String comparator = node.getRelation().getBase().toLowerCase();
+  private String queryByRelation(DbIndex dbIndex, IndexTextAndJsonValues vals, CQLTermNode node,
+      String comparator, CqlModifiers modifiers, List<String> ranks) throws QueryValidationException {
 
     switch (comparator) {
     case "=":
@@ -668,14 +2123,14 @@ public class CQL2PgJSON {
         return queryBySql(dbIndex.isOther(), vals, node, comparator, modifiers);
       } else if (CqlAccents.IGNORE_ACCENTS == modifiers.getCqlAccents() &&
           CqlCase.IGNORE_CASE == modifiers.getCqlCase()) {
-        return queryByFt(dbIndex.isFt(), vals, node, comparator, modifiers);
+        return queryByFt(dbIndex.isFt(), vals, node, comparator, modifiers, ranks);
       } else {
         return queryByLike(dbIndex.isGin(), vals, node, comparator, modifiers);
       }
     case "adj":
     case "all":
     case "any":
-      return queryByFt(dbIndex.isFt(), vals, node, comparator, modifiers);
+      return queryByFt(dbIndex.isFt(), vals, node, comparator, modifiers, ranks);
     case "==":
     case "<>":
       if (CqlTermFormat.STRING == modifiers.getCqlTermFormat()) {
@@ -694,6 +2149,327 @@ public class CQL2PgJSON {
     }
   }
 
+  /**
+   * SQL for name="", the field is defined and not JSON null. For a top-level key this is
+   * jsonb ? 'name' AND jsonb-&gt;&gt;'name' IS NOT NULL where a GIN index on jsonb can be used
+   * for the ? operator. For a nested key this is jsonb-&gt;'a'-&gt;&gt;'b' IS NOT NULL where a btree
+   * index on the field can be used.
+   *
+   * @param vals  SQL terms of the field
+   * @return SQL expression
+   */
+  private static String queryByDefined(IndexTextAndJsonValues vals) {
+    String indexJson = vals.getIndexJson();
+    String key = CqlUtils.getIndexNameFromIndexJson(indexJson);
+    if (key.contains(".")) {
+      return vals.getIndexText() + " IS NOT NULL";
+    }
+    return CqlUtils.getFieldNameFromIndexJson(indexJson) + " ? '" + key + "' AND "
+        + vals.getIndexText() + " IS NOT NULL";
+  }
+
+  /**
+   * Compare with the empty array using JSONB equality, for example lang==[] becomes jsonb-&gt;'lang' = '[]'.
+   * Case and accents modifiers are irrelevant for []. A btree index on jsonb-&gt;'lang' can be used.
+   * A string value "[]" is not an empty array and doesn't match lang==[].
+   *
+   * @param vals
+   * @param node
+   * @param comparator
+   * @return SQL expression, or null if node doesn't compare == or &lt;&gt; with []
+   */
+  private static String queryByEmptyArray(IndexTextAndJsonValues vals, CQLTermNode node, String comparator) {
+    if (! "[]".equals(node.getTerm().trim())) {
+      return null;
+    }
+    switch (comparator) {
+    case "==":
+      return vals.getIndexJson() + " = '[]'";
+    case "<>":
+      return vals.getIndexJson() + " <> '[]'";
+    default:
+      return null;
+    }
+  }
+
+  /**
+   * The type of the field according to the record schema, see {@link #setRecordSchema}.
+   *
+   * @param index  field name
+   * @return number, integer, boolean, date, datetime, ..., or "" if unknown
+   */
+  private String fieldType(String index) {
+    if (recordSchema == null) {
+      return "";
+    }
+    try {
+      org.folio.cql2pgjson.tbd.Schema.Field field = recordSchema.mapFieldNameAgainstSchema(index);
+      switch (field.getFormat()) {
+      case "date-time":
+        return "datetime";
+      case "date":
+        return "date";
+      default:
+        return field.getType();
+      }
+    } catch (QueryValidationException e) {
+      // the schema doesn't know this field, use the untyped translation
+      logger.log(Level.FINE, "no type for " + index, e);
+      return "";
+    }
+  }
+
+  private static boolean isNumberType(String fieldType) {
+    return "number".equals(fieldType) || "integer".equals(fieldType);
+  }
+
+  /**
+   * Create an SQL expression for the type the record schema defines for the field, see {@link #setRecordSchema}.
+   * A number field sets the number modifier and returns null.
+   *
+   * @param index
+   * @param vals
+   * @param node
+   * @param comparator
+   * @param modifiers
+   * @return SQL expression, or null if the default translation should be used
+   */
+  private String queryByFieldType(String index, IndexTextAndJsonValues vals, CQLTermNode node,
+      String comparator, CqlModifiers modifiers) {
+
+    String fieldType = fieldType(index);
+    String term = node.getTerm();
+    if (isNumberType(fieldType)) {
+      if (Cql2SqlUtil.isPostgresNumber(term)) {
+        modifiers.setCqlTermFormat(CqlTermFormat.NUMBER);
+      }
+      return null;
+    }
+
+    String sqlOperator;
+    switch (comparator) {
+    case "=":
+    case "==":
+      sqlOperator = "=";
+      break;
+    case "<>":
+    case "<":
+    case ">":
+    case "<=":
+    case ">=":
+      sqlOperator = comparator;
+      break;
+    default:
+      return null;
+    }
+
+    String sql;
+    switch (fieldType) {
+    case "boolean":
+      if (! "true".equals(term) && ! "false".equals(term) || sqlOperator.matches("[<>]=?")) {
+        return null;
+      }
+      sql = vals.getIndexJson() + " " + sqlOperator + " '" + term + "'";
+      break;
+    case "date":
+    case "datetime":
+      // compare the text: a cast to date or timestamptz is not immutable and cannot be indexed
+      List<String []> comparisons = dateComparisons(fieldType, "<>".equals(sqlOperator) ? "=" : sqlOperator, term);
+      if (comparisons == null) {
+        return null;
+      }
+      List<String> pieces = new ArrayList<>();
+      for (String [] comparison : comparisons) {
+        pieces.add(vals.getIndexText() + " " + comparison[0] + " '" + comparison[1] + "'");
+      }
+      sql = String.join(" AND ", pieces);
+      if ("<>".equals(sqlOperator)) {
+        sql = "NOT (" + sql + ")";
+      }
+      break;
+    default:
+      return null;
+    }
+
+    logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {index, sql});
+    return sql;
+  }
+
+  /**
+   * The comparisons of the text of a date or datetime field that match the term: the date of the
+   * term for a date field, the UTC timestamp of the term for a datetime field. A term without time
+   * on a datetime field is the complete UTC day, 2019-02-28 becomes the range
+   * [2019-02-28T00:00:00.000+0000, 2019-03-01T00:00:00.000+0000).
+   *
+   * @param fieldType  date or datetime
+   * @param sqlOperator  =, &lt;, &gt;, &lt;=, &gt;=
+   * @param term  ISO 8601 date with optional time and time zone offset
+   * @return pairs of comparator and value that all hold, or null if term is not a valid date
+   */
+  private static List<String []> dateComparisons(String fieldType, String sqlOperator, String term) {
+    String [] day;
+    try {
+      if ("date".equals(fieldType)) {
+        return Collections.singletonList(new String [] { sqlOperator, Cql2SqlUtil.toIsoDate(term) });
+      }
+      day = Cql2SqlUtil.toUtcDayRange(term);
+      if (day == null) {
+        return Collections.singletonList(new String [] { sqlOperator, Cql2SqlUtil.toUtcTimestamp(term) });
+      }
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    switch (sqlOperator) {
+    case "=":
+      return Arrays.asList(new String [] { ">=", day[0] }, new String [] { "<", day[1] });
+    case "<=":
+      return Collections.singletonList(new String [] { "<", day[1] });
+    case ">":
+      return Collections.singletonList(new String [] { ">=", day[1] });
+    default:
+      // < and >=
+      return Collections.singletonList(new String [] { sqlOperator, day[0] });
+    }
+  }
+
+  /**
+   * Create an SQL expression that matches if some element of the array has the keys and values
+   * given by the relation modifiers starting with @.
+   * <p>
+   * The modifier without value, for example @value, names the key the term is matched against;
+   * a modifier with value, for example @identifierTypeId=123, requires that key to have exactly that value.
+   * <p>
+   * Example: identifiers ==/@value/@identifierTypeId=123 6316800312
+   * <p>
+   * If the relation is == and all values are strings without masking characters where both case
+   * and accents are respected this becomes a JSONB containment, for example
+   * jsonb-&gt;'identifiers' @&gt; '[{"value":"6316800312","identifierTypeId":"123"}]'
+   * that a GIN index with jsonb_path_ops operator class can serve. Otherwise it becomes
+   * an EXISTS subquery over the array elements using the same query syntax as for a plain field.
+   *
+   * @param dbIndex
+   * @param vals
+   * @param node
+   * @param comparator
+   * @param modifiers
+   * @param ranks  see {@link #index2sql(String, CQLTermNode, List)}
+   * @return SQL expression
+   * @throws QueryValidationException
+   */
+  private String queryByArrayElement(DbIndex dbIndex, IndexTextAndJsonValues vals, CQLTermNode node,
+      String comparator, CqlModifiers modifiers, List<String> ranks) throws QueryValidationException {
+
+    String termKey = null;
+    Map<String, String> keyValues = new LinkedHashMap<>();
+    for (Modifier modifier : modifiers.getRelationModifiers()) {
+      String key = modifier.getType().substring(1);
+      if (key.isEmpty()) {
+        throw new QueryValidationException("CQL: Relation modifier @ without key name");
+      }
+      if (modifier.getComparison() == null) {
+        if (termKey != null) {
+          throw new QueryValidationException("CQL: Only one relation modifier without value allowed, found @"
+              + termKey + " and @" + key);
+        }
+        termKey = key;
+        continue;
+      }
+      if (! "=".equals(modifier.getComparison()) && ! "==".equals(modifier.getComparison())) {
+        throw new CQLFeatureUnsupportedException("CQL: Unsupported comparison for relation modifier @"
+            + key + ": " + modifier.getComparison());
+      }
+      keyValues.put(key, modifier.getValue());
+    }
+    String term = node.getTerm();
+    if (termKey == null && ! "*".equals(term)) {
+      throw new QueryValidationException("CQL: Relation modifier @ without value required to match the term "
+          + term + ", for example =/@value");
+    }
+
+    String sql = queryByArrayElementContainment(vals, termKey, term, keyValues, comparator, modifiers);
+    if (sql == null) {
+      sql = queryByArrayElementExists(dbIndex, vals, termKey, node, keyValues, comparator, modifiers, ranks);
+    }
+    logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {vals.getIndexJson(), sql});
+    return sql;
+  }
+
+  /**
+   * @return containment SQL expression for queryByArrayElement, or null if containment cannot be used.
+   */
+  @SuppressWarnings("squid:S00107")  // suppress "Methods should not have too many parameters"
+  private String queryByArrayElementContainment(IndexTextAndJsonValues vals, String termKey, String term,
+      Map<String, String> keyValues, String comparator, CqlModifiers modifiers) {
+
+    if (! "==".equals(comparator)
+        || CqlCase.RESPECT_CASE != modifiers.getCqlCase()
+        || CqlAccents.RESPECT_ACCENTS != modifiers.getCqlAccents()) {
+      return null;
+    }
+    ObjectNode element = JsonNodeFactory.instance.objectNode();
+    if (termKey != null) {
+      if (Cql2SqlUtil.hasCqlWildcard(term)) {
+        return null;
+      }
+      element.put(termKey, Cql2SqlUtil.cql2string(term));
+    }
+    for (Map.Entry<String, String> keyValue : keyValues.entrySet()) {
+      if (Cql2SqlUtil.hasCqlWildcard(keyValue.getValue())) {
+        return null;
+      }
+      element.put(keyValue.getKey(), Cql2SqlUtil.cql2string(keyValue.getValue()));
+    }
+    JsonNode array = JsonNodeFactory.instance.arrayNode().add(element);
+
+    String field = CqlUtils.getFieldNameFromIndexJson(vals.getIndexJson());
+    String index = CqlUtils.getIndexNameFromIndexJson(vals.getIndexJson());
+    String indexPath = DbSchemaUtils.getJsonbPathOpsIndexPath(dbSchemaJson, vals.getIndexJson());
+    if (indexPath == null) {
+      indexPath = index;
+    }
+    String expression = indexPath.isEmpty() ? field : index2sqlJson(field, indexPath);
+    String relativeIndex = index.equals(indexPath) ? "" : index.substring(indexPath.length()).replaceFirst("^\\.", "");
+    JsonNode document = relativeIndex.isEmpty() ? array : containmentDocument(relativeIndex.split("\\."), array);
+    return expression + " @> " + jsonLiteral(document);
+  }
+
+  /**
+   * @return EXISTS SQL expression for queryByArrayElement
+   * @throws QueryValidationException
+   */
+  @SuppressWarnings("squid:S00107")  // suppress "Methods should not have too many parameters"
+  private String queryByArrayElementExists(DbIndex dbIndex, IndexTextAndJsonValues vals, String termKey,
+      CQLTermNode node, Map<String, String> keyValues, String comparator, CqlModifiers modifiers,
+      List<String> ranks) throws QueryValidationException {
+
+    final String element = "element";
+    List<String> sqlPieces = new ArrayList<>();
+    if (termKey != null) {
+      sqlPieces.add(queryByRelation(dbIndex, elementValues(element, termKey), node, comparator, modifiers, ranks));
+    }
+    for (Map.Entry<String, String> keyValue : keyValues.entrySet()) {
+      CQLTermNode keyNode = new CQLTermNode(keyValue.getKey(), new CQLRelation("=="), keyValue.getValue());
+      sqlPieces.add(queryByLike(true, elementValues(element, keyValue.getKey()), keyNode, "==", modifiers));
+    }
+    String array = vals.getIndexJson();
+    return "EXISTS (SELECT 1 FROM jsonb_array_elements("
+        + "CASE WHEN jsonb_typeof(" + array + ") = 'array' THEN " + array + " ELSE '[]' END) AS " + element
+        + (sqlPieces.isEmpty() ? "" : " WHERE (" + String.join(") AND (", sqlPieces) + ")")
+        + ")";
+  }
+
+  /**
+   * @param element  alias of the array element
+   * @param key  key within the array element
+   * @return SQL terms of the value of key
+   */
+  private static IndexTextAndJsonValues elementValues(String element, String key) {
+    IndexTextAndJsonValues vals = new IndexTextAndJsonValues();
+    vals.setIndexJson(index2sqlJson(element, key));
+    vals.setIndexText(index2sqlText(element, key));
+    return vals;
+  }
+
   /**
    * Create an SQL expression using Full Text query syntax.
    *
@@ -702,10 +2478,12 @@ public class CQL2PgJSON {
    * @param node
    * @param comparator
    * @param modifiers
+   * @param ranks  if not null the ts_rank of the full text search is added
    * @return
    * @throws QueryValidationException
    */
-  private String queryByFt(boolean hasFtIndex, IndexTextAndJsonValues vals, CQLTermNode node, String comparator, CqlModifiers modifiers) throws QueryValidationException {
+  private String queryByFt(boolean hasFtIndex, IndexTextAndJsonValues vals, CQLTermNode node, String comparator,
+      CqlModifiers modifiers, List<String> ranks) throws QueryValidationException {
 
     String index = vals.getIndexText();
 
@@ -727,7 +2505,7 @@ public class CQL2PgJSON {
       return "true";
     }
     if (term.equals("")) {
-      return index + " ~ ''";
+      return queryByDefined(vals);
     }
     String[] words = term.split("\\s+");
     for (int i = 0; i < words.length; i++) {
@@ -748,14 +2526,230 @@ public class CQL2PgJSON {
       default:
         throw new QueryValidationException("CQL: Unknown comparator '" + comparator + "'");
     }
-    // "simple" dictionary only does lower_casing, so need f_unaccent
-    String sql = "to_tsvector('simple', f_unaccent(" + index + ")) "
-      + "@@ to_tsquery('simple', f_unaccent('" + tsTerm + "'))";
+    // use the same dictionary as the index; "simple" dictionary only does lower_casing, so need f_unaccent
+    String dictionary = "'" + DbSchemaUtils.getFullTextDictionary(dbSchemaJson, vals.getIndexJson()) + "'";
+    String tsVector = "to_tsvector(" + dictionary + ", f_unaccent(" + index + "))";
+    String tsQuery = "to_tsquery(" + dictionary + ", f_unaccent('" + tsTerm + "'))";
+    String sql = tsVector + " @@ " + tsQuery;
+    if (ranks != null) {
+      ranks.add("ts_rank(" + tsVector + ", " + tsQuery + ")");
+    }
+
+    logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {index, sql});
+    return sql;
+  }
+
+  /**
+   * Create an SQL expression using the JSONB containment operator @&gt;.
+   * <p>
+   * This is only done if schema.json declares a GIN index with jsonb_path_ops operator class
+   * that covers the field, and if the term is a string without masking characters where both
+   * case and accents are respected, so that containment matches the same values as LIKE.
+   * The term true or false also matches the JSON boolean, any value also matches an array element.
+   * A number term uses LIKE because containment compares numerically: 4.0 would match 4.
+   * <p>
+   * Example: status.name==/respectCase/respectAccents Open with an index on the complete record becomes<br>
+   * (jsonb @&gt; '{"status":{"name":"Open"}}' OR jsonb @&gt; '{"status":{"name":["Open"]}}')
+   *
+   * @param vals
+   * @param node
+   * @param modifiers
+   * @return SQL expression, or null if containment cannot be used
+   */
+  private String queryByContainment(IndexTextAndJsonValues vals, CQLTermNode node, CqlModifiers modifiers) {
+    String indexPath = DbSchemaUtils.getJsonbPathOpsIndexPath(dbSchemaJson, vals.getIndexJson());
+    if (indexPath == null) {
+      return null;
+    }
+    List<JsonNode> values = containmentValues(node.getTerm(), modifiers);
+    if (values.isEmpty()) {
+      return null;
+    }
+
+    String field = CqlUtils.getFieldNameFromIndexJson(vals.getIndexJson());
+    String index = CqlUtils.getIndexNameFromIndexJson(vals.getIndexJson());
+    String expression = field;
+    String relativeIndex = index;
+    if (! indexPath.isEmpty()) {
+      expression = index2sqlJson(field, indexPath);
+      relativeIndex = index.equals(indexPath) ? "" : index.substring(indexPath.length() + 1);
+    }
+
+    List<String> sqlPieces = new ArrayList<>();
+    for (JsonNode value : values) {
+      if (relativeIndex.isEmpty()) {
+        // a top-level array contains a primitive value, no need for the array variant
+        sqlPieces.add(expression + " @> " + jsonLiteral(value));
+        continue;
+      }
+      String [] path = relativeIndex.split("\\.");
+      sqlPieces.add(expression + " @> " + jsonLiteral(containmentDocument(path, value)));
+      JsonNode element = JsonNodeFactory.instance.arrayNode().add(value);
+      sqlPieces.add(expression + " @> " + jsonLiteral(containmentDocument(path, element)));
+    }
+    String sql = sqlPieces.size() == 1 ? sqlPieces.get(0) : "(" + String.join(" OR ", sqlPieces) + ")";
 
     logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {index, sql});
     return sql;
   }
 
+  /**
+   * The JSON values whose text exactly matches the CQL term like jsonb-&gt;&gt;'field' LIKE term does,
+   * empty list if there are none or if the term ignores case or accents or is a number.
+   * @param term  CQL term
+   * @param modifiers  case and accents modifiers
+   * @return list of JSON values
+   */
+  private static List<JsonNode> containmentValues(String term, CqlModifiers modifiers) {
+    List<JsonNode> values = new ArrayList<>(2);
+    if (CqlCase.RESPECT_CASE != modifiers.getCqlCase()
+        || CqlAccents.RESPECT_ACCENTS != modifiers.getCqlAccents()
+        || Cql2SqlUtil.hasCqlWildcard(term)) {
+      return values;
+    }
+    String s = Cql2SqlUtil.cql2string(term);
+    if (Cql2SqlUtil.isPostgresNumber(s)) {
+      // jsonb compares numbers numerically, 4.0 = 4, but the text differs
+      return values;
+    }
+    if ("true".equals(s) || "false".equals(s)) {
+      values.add(BooleanNode.valueOf(Boolean.parseBoolean(s)));
+    }
+    values.add(TextNode.valueOf(s));
+    return values;
+  }
+
+  /**
+   * Nest value into JSON objects, for example path = [a, b] results in {"a":{"b":value}}.
+   * @param path  the keys, outermost first
+   * @param value  the innermost value
+   * @return the JSON document
+   */
+  private static JsonNode containmentDocument(String [] path, JsonNode value) {
+    JsonNode document = value;
+    for (int i = path.length - 1; i >= 0; i--) {
+      ObjectNode parent = JsonNodeFactory.instance.objectNode();
+      parent.set(path[i], document);
+      document = parent;
+    }
+    return document;
+  }
+
+  /**
+   * @param json  the JSON to convert
+   * @return json as SQL string literal with single quotes
+   */
+  private static String jsonLiteral(JsonNode json) {
+    // postgres requires to double a ' inside a ' terminated string.
+    return "'" + json.toString().replace("'", "''") + "'";
+  }
+
+  /**
+   * @param jsonPath  jsonpath and JSONB field, see {@link #jsonPath(CQLNode, Map)}
+   * @return SQL expression that applies the jsonpath predicate to the JSONB field
+   */
+  private static String jsonPathPredicate(String [] jsonPath) {
+    // postgres requires to double a ' inside a ' terminated string.
+    String sql = jsonPath[1] + " @@ '" + jsonPath[0].replace("'", "''") + "'";
+    logger.log(Level.FINE, "jsonpath generated SQL {0}", sql);
+    return sql;
+  }
+
+  /**
+   * Compile node and each of its subtrees into a single jsonpath predicate on its JSONB field,
+   * see {@link #setJsonPathMode(boolean)}. This works bottom-up so that each node is compiled once.
+   *
+   * @param node  the node to compile
+   * @param jsonPaths  where to put the jsonpath and the JSONB field of each subtree that can be expressed
+   * @return jsonpath and JSONB field of node, or null if node cannot be expressed as jsonpath
+   * @throws QueryValidationException
+   */
+  private String [] jsonPath(CQLNode node, Map<CQLNode, String []> jsonPaths) throws QueryValidationException {
+    String [] jsonPath = null;
+    if (node instanceof CQLTermNode) {
+      jsonPath = jsonPath((CQLTermNode) node);
+    } else if (node instanceof CQLBooleanNode) {
+      CQLBooleanNode booleanNode = (CQLBooleanNode) node;
+      String [] left = jsonPath(booleanNode.getLeftOperand(), jsonPaths);
+      String [] right = jsonPath(booleanNode.getRightOperand(), jsonPaths);
+      // NOT: a jsonpath comparison of different types is unknown, !unknown is unknown,
+      // but CQL NOT must match. Keep the SQL IS NOT TRUE for this.
+      String operator = null;
+      if (node instanceof CQLAndNode) {
+        operator = " && ";
+      } else if (node instanceof CQLOrNode) {
+        operator = " || ";
+      }
+      if (operator != null && left != null && right != null && left[1].equals(right[1])) {
+        jsonPath = new String [] { "(" + left[0] + operator + right[0] + ")", left[1] };
+      }
+    }
+    if (jsonPath != null) {
+      jsonPaths.put(node, jsonPath);
+    }
+    return jsonPath;
+  }
+
+  /**
+   * @return jsonpath and JSONB field of the relation, or null if it cannot be expressed as jsonpath
+   */
+  private String [] jsonPath(CQLTermNode node) throws QueryValidationException {
+    String index = node.getIndex();
+    if ("id".equals(index) || index.toLowerCase().startsWith("cql.")) {
+      return null;
+    }
+    CqlModifiers modifiers = new CqlModifiers(node);
+    if (! modifiers.getRelationModifiers().isEmpty() || isMultiFieldIndex(index) || foreignKeyIndex(index) != null
+        || partitionKeyPredicate(node) != null) {
+      return null;
+    }
+    if (isNumberType(fieldType(index)) && Cql2SqlUtil.isPostgresNumber(node.getTerm())) {
+      modifiers.setCqlTermFormat(CqlTermFormat.NUMBER);
+    }
+    IndexTextAndJsonValues vals = getIndexTextAndJsonValues(index);
+    String path = "$";
+    for (String key : CqlUtils.getIndexNameFromIndexJson(vals.getIndexJson()).split("\\.")) {
+      path += "." + TextNode.valueOf(key).toString();
+    }
+    String comparator = node.getRelation().getBase().toLowerCase();
+
+    List<String> jsonPathPieces = new ArrayList<>(2);
+    if (CqlTermFormat.NUMBER == modifiers.getCqlTermFormat()) {
+      if (! Cql2SqlUtil.isPostgresNumber(node.getTerm())) {
+        return null;
+      }
+      switch (comparator) {
+      case "=":
+      case "==":
+        comparator = "==";
+        break;
+      case "<":
+      case ">":
+      case "<=":
+      case ">=":
+        break;
+      default:
+        return null;
+      }
+      jsonPathPieces.add(path + " " + comparator + " " + new BigDecimal(node.getTerm()).toPlainString());
+    } else {
+      if (! "==".equals(comparator)) {
+        return null;
+      }
+      for (JsonNode value : containmentValues(node.getTerm(), modifiers)) {
+        jsonPathPieces.add(path + " == " + value);
+      }
+      if (jsonPathPieces.isEmpty()) {
+        return null;
+      }
+    }
+    String field = CqlUtils.getFieldNameFromIndexJson(vals.getIndexJson());
+    if (jsonPathPieces.size() == 1) {
+      return new String [] { jsonPathPieces.get(0), field };
+    }
+    return new String [] { "(" + String.join(" || ", jsonPathPieces) + ")", field };
+  }
+
   /**
    * Create an SQL expression using LIKE query syntax.
    *
@@ -799,7 +2793,8 @@ public class CQL2PgJSON {
    * @param modifiers
    * @return
    */
-  private String queryBySql(boolean hasIndex, IndexTextAndJsonValues vals, CQLTermNode node, String comparator, CqlModifiers modifiers) {
+  private String queryBySql(boolean hasIndex, IndexTextAndJsonValues vals, CQLTermNode node, String comparator, CqlModifiers modifiers)
+      throws QueryValidationException {
 
     String index = vals.getIndexText();
 
@@ -810,15 +2805,61 @@ public class CQL2PgJSON {
     if (comparator.equals("==")) {
       comparator = "=";
     }
-    String term = "'" + Cql2SqlUtil.cql2like(node.getTerm()) + "'";
     if (CqlTermFormat.NUMBER.equals(modifiers.getCqlTermFormat())) {
-      index = "(" + index + ")::numeric";
-      term = node.getTerm();
+      return queryByNumber(vals, node, comparator);
     }
+    String term = "'" + Cql2SqlUtil.cql2like(node.getTerm()) + "'";
     String sql = index + " " + comparator + term;
 
     logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {index, sql});
     return sql;
   }
 
+  /**
+   * Create an SQL expression comparing the JSONB value with a JSONB number.
+   * <p>
+   * This matches an expression index on the JSONB value like CREATE INDEX ON tab ((jsonb-&gt;'num'))
+   * that is also used for sortBy num/number. JSONB compares numbers numerically, 3.4 = 3.400 = 0.34e1,
+   * but sorts all strings before all numbers, therefore the jsonb_typeof check restricts
+   * all relations except = to numbers.
+   * <p>
+   * A number stored as a JSON string like "num": "0.002" is matched by a recheck that casts the
+   * string to numeric if it looks like a number. The recheck is omitted if the record schema
+   * types the field as number or integer, see {@link #setRecordSchema}; this allows the planner
+   * to use the index for the complete expression.
+   * <p>
+   * Example: num&lt;/number 0.003 becomes (jsonb-&gt;'num' &lt; '0.003' AND jsonb_typeof(jsonb-&gt;'num') = 'number'
+   * OR CASE WHEN jsonb_typeof(jsonb-&gt;'num') = 'string' AND jsonb-&gt;&gt;'num' ~ '...'
+   * THEN (jsonb-&gt;&gt;'num')::numeric &lt; 0.003 ELSE false END)
+   *
+   * @param vals
+   * @param node
+   * @param comparator  SQL comparator: =, &lt;&gt;, &lt;, &gt;, &lt;=, &gt;=
+   * @return SQL expression
+   * @throws QueryValidationException if the term is not a number
+   */
+  private String queryByNumber(IndexTextAndJsonValues vals, CQLTermNode node, String comparator)
+      throws QueryValidationException {
+
+    String term = node.getTerm();
+    if (! Cql2SqlUtil.isPostgresNumber(term)) {
+      throw new QueryValidationException("CQL: /number requires a number, but found: " + term);
+    }
+    String index = vals.getIndexJson();
+    String number = new BigDecimal(term).toPlainString();
+    String sql = index + " " + comparator + " '" + number + "'";
+    if (! "=".equals(comparator)) {
+      sql += " AND jsonb_typeof(" + index + ") = 'number'";
+    }
+    if (! isNumberType(fieldType(node.getIndex()))) {
+      String text = vals.getIndexText();
+      sql = "(" + sql + " OR CASE WHEN jsonb_typeof(" + index + ") = 'string'"
+          + " AND " + text + " ~ '" + POSTGRES_NUMBER_REGEX + "'"
+          + " THEN (" + text + ")::numeric " + comparator + " " + number + " ELSE false END)";
+    }
+
+    logger.log(Level.FINE, "index {0} generated SQL {1}", new Object[] {index, sql});
+    return sql;
+  }
+
 }
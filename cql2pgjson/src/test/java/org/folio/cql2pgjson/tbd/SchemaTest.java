@@ -66,6 +66,16 @@ public class SchemaTest {
     assertThat(s.mapFieldNameAndTypeAgainstSchema(field, "string").getPath(), is(field));
   }
 
+  @Test
+  public void typeAndFormat() throws Exception {
+    Schema s = new Schema(Util.getResource("typed.json"));
+    assertThat(s.mapFieldNameAgainstSchema("metadata.updatedDate").getType(), is("string"));
+    assertThat(s.mapFieldNameAgainstSchema("metadata.updatedDate").getFormat(), is("date-time"));
+    assertThat(s.mapFieldNameAgainstSchema("birthday").getFormat(), is("date"));
+    assertThat(s.mapFieldNameAgainstSchema("count").getType(), is("integer"));
+    assertThat(s.mapFieldNameAgainstSchema("count").getFormat(), is(""));
+  }
+
   @Test
   public void fieldsWithTypeNotFound() throws Exception {
     Schema s = new Schema(Util.getResource("complex.json"));
@@ -2,7 +2,12 @@ package org.folio.cql2pgjson.util;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.folio.cql2pgjson.model.DbIndex;
 import org.folio.rest.persist.ddlgen.Index;
@@ -62,4 +67,79 @@ public class DbSchemaUtilsTest {
     assertTrue(dbIndex.isOther());
   }
 
+  @Test
+  public void testGetJsonbPathOpsIndexPath() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"tables\": ["
+        + "{\"tableName\": \"users\", \"ginIndex\": [ {\"fieldName\": \"name\"},"
+        + " {\"fieldName\": \"*\", \"opClass\": \"jsonb_path_ops\"} ] },"
+        + "{\"tableName\": \"groups\", \"ginIndex\": ["
+        + " {\"fieldName\": \"status\", \"opClass\": \"jsonb_path_ops\"} ] } ] }");
+    assertEquals("", DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "users.jsonb->'name'"));
+    assertEquals("", DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "users.jsonb->'a'->'b'"));
+    assertEquals("status", DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "groups.jsonb->'status'"));
+    assertEquals("status", DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "groups.jsonb->'status'->'name'"));
+    assertNull(DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "groups.jsonb->'statusCode'"));
+    assertNull(DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "groups.jsonb->'name'"));
+    assertNull(DbSchemaUtils.getJsonbPathOpsIndexPath(schemaJson, "loans.jsonb->'name'"));
+  }
+
+  @Test
+  public void testGetFullTextDictionary() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"fullText\": {\"defaultDictionary\": \"english\"}, \"tables\": ["
+        + "{\"tableName\": \"users\", \"fullTextIndex\": [ {\"fieldName\": \"name\", \"dictionary\": \"german\"},"
+        + " {\"fieldName\": \"email\"}, {\"fieldName\": \"bad\", \"dictionary\": \"x'); DROP TABLE y; --\"} ] } ] }");
+    assertEquals("german", DbSchemaUtils.getFullTextDictionary(schemaJson, "users.jsonb->'name'"));
+    assertEquals("english", DbSchemaUtils.getFullTextDictionary(schemaJson, "users.jsonb->'email'"));
+    assertEquals("english", DbSchemaUtils.getFullTextDictionary(schemaJson, "groups.jsonb->'name'"));
+    assertEquals("simple", DbSchemaUtils.getFullTextDictionary(schemaJson, "users.jsonb->'bad'"));
+    assertEquals("simple", DbSchemaUtils.getFullTextDictionary(new ObjectMapper().readTree("{}"), "users.jsonb->'name'"));
+    assertEquals("public.english_unaccent", DbSchemaUtils.getFullTextDictionary(new ObjectMapper().readTree(
+        "{\"fullText\": {\"defaultDictionary\": \"public.english_unaccent\"}}"), "users.jsonb->'name'"));
+  }
+
+  @Test
+  public void testGetFullTextMultiField() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"tables\": [ {\"tableName\": \"users\", \"fullTextIndex\": [ {\"fieldName\": \"name\"},"
+        + " {\"fieldName\": \"keyword\", \"multiFieldNames\": \"name, email,address.city\"} ] } ] }");
+    assertEquals(Arrays.asList("name", "email", "address.city"),
+        DbSchemaUtils.getFullTextMultiFieldNames(schemaJson, "users.jsonb->'keyword'"));
+    assertTrue(DbSchemaUtils.getFullTextMultiFieldNames(schemaJson, "users.jsonb->'name'").isEmpty());
+    assertTrue(DbSchemaUtils.getFullTextMultiFieldNames(schemaJson, "groups.jsonb->'keyword'").isEmpty());
+    assertEquals("keyword", DbSchemaUtils.getFullTextMultiFieldIndex(schemaJson, "users",
+        Arrays.asList("address.city", "name", "email")));
+    assertNull(DbSchemaUtils.getFullTextMultiFieldIndex(schemaJson, "users", Arrays.asList("name", "email")));
+  }
+
+  @Test
+  public void testGetForeignKeyFieldName() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"tables\": [ {\"tableName\": \"loan\", \"foreignKeys\": [ {\"fieldName\": \"userId\", \"targetTable\": \"users\"},"
+        + " {\"fieldName\": \"itemId\", \"targetTable\": \"item\"} ] }, {\"tableName\": \"item\"} ] }");
+    assertEquals("itemId", DbSchemaUtils.getForeignKeyFieldName(schemaJson, "loan", "item"));
+    assertEquals("userId", DbSchemaUtils.getForeignKeyFieldName(schemaJson, "LOAN", "Users"));
+    assertNull(DbSchemaUtils.getForeignKeyFieldName(schemaJson, "item", "loan"));
+    assertNull(DbSchemaUtils.getForeignKeyFieldName(schemaJson, "other", "item"));
+  }
+
+  @Test
+  public void testGetRoutingKeys() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"tables\": [ {\"tableName\": \"loan\", \"routingKeys\": [ \"tenantId\", \"year\" ] }, {\"tableName\": \"item\"} ] }");
+    assertEquals(Arrays.asList("tenantId", "year"), DbSchemaUtils.getRoutingKeys(schemaJson, "Loan"));
+    assertEquals(Collections.emptyList(), DbSchemaUtils.getRoutingKeys(schemaJson, "item"));
+    assertEquals(Collections.emptyList(), DbSchemaUtils.getRoutingKeys(schemaJson, null));
+  }
+
+  @Test
+  public void testIsWithMetadata() throws IOException {
+    JsonNode schemaJson = new ObjectMapper().readTree(
+        "{\"tables\": [ {\"tableName\": \"loan\", \"withMetadata\": true }, {\"tableName\": \"item\"} ] }");
+    assertTrue(DbSchemaUtils.isWithMetadata(schemaJson, "Loan"));
+    assertFalse(DbSchemaUtils.isWithMetadata(schemaJson, "item"));
+    assertTrue(DbSchemaUtils.isWithMetadata(schemaJson, "other"));
+  }
+
 }
@@ -2,30 +2,47 @@ package org.z3950.zing.cql.cql2pgjson;
 
 import static org.hamcrest.CoreMatchers.allOf;
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.endsWith;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.junit.Assert.*;
 import org.junit.runner.RunWith;
 import org.z3950.zing.cql.ModifierSet;
 import org.z3950.zing.cql.cql2pgjson.CQL2PgJSON;
 
 import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import org.folio.cql2pgjson.exception.CQL2PgJSONException;
 import org.folio.cql2pgjson.exception.CQLFeatureUnsupportedException;
 import org.folio.cql2pgjson.exception.FieldException;
 import org.folio.cql2pgjson.exception.QueryValidationException;
 import org.folio.cql2pgjson.exception.ServerChoiceIndexesException;
+import org.folio.cql2pgjson.model.CountStrategy;
 import org.folio.cql2pgjson.model.CqlMasking;
 import org.folio.cql2pgjson.model.CqlModifiers;
+import org.folio.cql2pgjson.model.KeyConstraint;
+import org.folio.cql2pgjson.model.SqlFanOut;
 import org.folio.cql2pgjson.model.SqlSelect;
+import org.folio.cql2pgjson.model.SqlTemplate;
+import org.folio.cql2pgjson.model.TableSample;
+import org.folio.cql2pgjson.tbd.SchemaException;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -371,21 +388,61 @@ public class CQL2PgJSONTest extends DatabaseTestBase {
 
   @Test
   @Parameters({
+    // the string "[]" of s is not an empty array
     "                     lang ==/respectAccents []                      # a",
     "cql.allRecords=1 NOT lang <>/respectAccents []                      # a; n",
     "lang = en                                # b; c; d; f; g; h; i",
 
     // note that \"en\" also matches case f ["\"en"]
     "                     lang = \\\"en\\\"   # b; c; d; f; g; h; i",  // without Java quoting: \"en\"
-    "cql.allRecords=1 NOT lang = \\\"en\\\"   # a; e; n",
-    "lang = \"\"      NOT lang = \\\"en\\\"   # a; e",
-    "lang = \"\"                                                         # a; b; c; d; e; f; g; h; i",
+    "cql.allRecords=1 NOT lang = \\\"en\\\"   # a; e; n; s",
+    "lang = \"\"      NOT lang = \\\"en\\\"   # a; e; s",
+    "lang = \"\"                                                         # a; b; c; d; e; f; g; h; i; s",
     "cql.allRecords=1 NOT lang = \"\"                                    # n",
   })
   public void array(String testcase) {
     select("array.sql", testcase);
   }
 
+  @Test
+  @Parameters({
+    "identifiers ==/@value/@identifierTypeId=isbn 6316800312                                 # b",
+    "identifiers ==/respectCase/respectAccents/@value/@identifierTypeId=isbn 6316800312      # b",
+    "identifiers ==/@value 6316800312                                                        # b; c",
+    "identifiers ==/@value/@identifierTypeId=isbn 9780*                                      # d",
+    "identifiers ==/@value/@identifierTypeId=oclc 9780552                                    #",
+    "identifiers =/@value/@identifierTypeId=oclc 968777846                                   # d",
+    "identifiers ==/@value/@identifierTypeId=isbn x-123                                      # e",
+    "identifiers ==/respectCase/@value/@identifierTypeId=isbn x-123                          #",
+    "identifiers ==/respectCase/respectAccents/@value/@identifierTypeId=ISBN 6316800312      #",
+    "identifiers =/@identifierTypeId=oclc *                                                  # c; d",
+    "cql.allRecords=1 NOT identifiers ==/@value/@identifierTypeId=isbn 6316800312            # a; c; d; e; f; n",
+  })
+  public void arrayOfObjects(String testcase) {
+    select("arrayOfObjects.sql", testcase);
+  }
+
+  @Test
+  public void arrayOfObjectsSql() throws FieldException, QueryValidationException, URISyntaxException {
+    assertEquals("users.user_data->'identifiers' @> '[{\"value\":\"6316800312\",\"identifierTypeId\":\"isbn\"}]'",
+        cql2pgJson.toSql("identifiers ==/respectCase/respectAccents/@value/@identifierTypeId=isbn 6316800312").getWhere());
+    assertEquals("users.user_data @> '{\"identifiers\":[{\"value\":\"6316800312\"}]}'",
+        cql2pgJson("containment_db_schema.json")
+        .toSql("identifiers ==/respectCase/respectAccents/@value 6316800312").getWhere());
+    assertThat(cql2pgJson.toSql("identifiers ==/@value/@identifierTypeId=isbn 6316800312").getWhere(),
+        allOf(startsWith("EXISTS (SELECT 1 FROM jsonb_array_elements("), containsString("element->>'identifierTypeId'")));
+  }
+
+  @Test(expected = QueryValidationException.class)
+  public void arrayOfObjectsWithoutTermKey() throws QueryValidationException {
+    cql2pgJson.toSql("identifiers ==/@identifierTypeId=isbn 6316800312");
+  }
+
+  @Test(expected = QueryValidationException.class)
+  public void arrayOfObjectsTwoTermKeys() throws QueryValidationException {
+    cql2pgJson.toSql("identifiers ==/@value/@type 6316800312");
+  }
+
   @Test
   // Should not produce a StackOverflowError:
   // https://issues.folio.org/browse/CIRC-119 "Requests API GET /requests does not scale"
@@ -588,6 +645,30 @@ public class CQL2PgJSONTest extends DatabaseTestBase {
     select("special.sql", testcase);
   }
 
+  @Test
+  @Parameters({
+    "num</number 3      # a; b",
+    "num<=/number 2     # a; b",
+    "num>/number 2      # c; e",
+    "num>=/number 10    # c; e",
+    "num=/number 10     # c; e",
+    "num==/number 2.0   # b",
+    "num<>/number 10    # a; b",
+    "num==/number 0     #",
+  })
+  public void compareNumberStoredAsString(String testcase) throws CQL2PgJSONException {
+    select("number.sql", testcase);
+  }
+
+  @Test
+  public void compareNumberSql() throws CQL2PgJSONException {
+    assertEquals("(users.user_data->'num' < '10' AND jsonb_typeof(users.user_data->'num') = 'number'"
+        + " OR CASE WHEN jsonb_typeof(users.user_data->'num') = 'string'"
+        + " AND users.user_data->>'num' ~ '^\\s*[+-]?(\\d+|\\d+\\.\\d*|\\.\\d+)([eE][+-]?\\d+)?\\s*$'"
+        + " THEN (users.user_data->>'num')::numeric < 10 ELSE false END)",
+        new CQL2PgJSON("users.user_data").toSql("num</number 1e1").getWhere());
+  }
+
   @Test
   @Parameters({
     "address.city =    1234                 # e; f",
@@ -601,6 +682,959 @@ public class CQL2PgJSONTest extends DatabaseTestBase {
     select("special.sql", testcase);
   }
 
+  @Test
+  @Parameters({
+    "active==true                                    # a; c",
+    "active=false                                    # b",
+    "active<>true                                    # b",
+    "birthday<1990-02-01                             # a",
+    "birthday>=1990-02-01                            # b; c",
+    "metadata.updatedDate==\"2019-02-28T16:40:00Z\"   # a; b",
+    "metadata.updatedDate>\"2019-02-28T16:40:00Z\"    # c",
+    "metadata.updatedDate<\"2019-03-01T00:00:00Z\"    # a; b",
+    "metadata.updatedDate<=\"2019-02-28T18:40+02:00\" # a; b",
+    "metadata.updatedDate>=2019-03-01                # c",
+    "metadata.updatedDate=2019-02-28                 # a; b",
+    "metadata.updatedDate==2019-03-01                # c",
+    "metadata.updatedDate<=2019-02-28                # a; b",
+    "metadata.updatedDate>2019-02-28                 # c",
+    "metadata.updatedDate<>2019-02-28                # c",
+    "count<10                                        # a",
+    "count>=10                                       # b; c",
+    "count==100                                      # c",
+    "name==a                                         # a",
+  })
+  public void recordSchema(String testcase) throws IOException, CQL2PgJSONException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("typed.json")));
+    select(aCql2pgJson, "typed.sql", testcase);
+  }
+
+  @Test
+  public void recordSchemaSql() throws IOException, CQL2PgJSONException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("typed.json")));
+    assertEquals("users.user_data->'active' = 'true'", aCql2pgJson.toSql("active==true").getWhere());
+    assertEquals("users.user_data->>'birthday' < '1990-02-01'",
+        aCql2pgJson.toSql("birthday<1990-02-01").getWhere());
+    assertEquals("users.user_data->>'birthday' = '1990-02-01'",
+        aCql2pgJson.toSql("birthday==1990-02-01T23:00:00+0200").getWhere());
+    assertEquals("users.user_data->'metadata'->>'updatedDate' >= '2019-02-28T16:40:00.000+0000'",
+        aCql2pgJson.toSql("metadata.updatedDate>=\"2019-02-28T16:40:00Z\"").getWhere());
+    assertEquals("users.user_data->'metadata'->>'updatedDate' < '2019-02-28T16:40:00.000+0000'",
+        aCql2pgJson.toSql("metadata.updatedDate<\"2019-02-28T18:40+02\"").getWhere());
+    // a date without time is the complete UTC day
+    assertEquals("users.user_data->'metadata'->>'updatedDate' >= '2019-02-28T00:00:00.000+0000'"
+        + " AND users.user_data->'metadata'->>'updatedDate' < '2019-03-01T00:00:00.000+0000'",
+        aCql2pgJson.toSql("metadata.updatedDate=2019-02-28").getWhere());
+    assertEquals("NOT (users.user_data->'metadata'->>'updatedDate' >= '2019-02-28T00:00:00.000+0000'"
+        + " AND users.user_data->'metadata'->>'updatedDate' < '2019-03-01T00:00:00.000+0000')",
+        aCql2pgJson.toSql("metadata.updatedDate<>2019-02-28").getWhere());
+    assertEquals("users.user_data->'count' < '10' AND jsonb_typeof(users.user_data->'count') = 'number'",
+        aCql2pgJson.toSql("count<10").getWhere());
+    assertEquals("users.user_data->'count' DESC", aCql2pgJson.toSql("name=a sortBy count/sort.descending").getOrderBy());
+    // not a typed term: default translation
+    assertThat(aCql2pgJson.toSql("birthday==1990*").getWhere(), containsString(" LIKE "));
+    assertThat(aCql2pgJson.toSql("birthday==1990-02-30").getWhere(), containsString(" LIKE "));
+  }
+
+  @Test
+  @Parameters({
+    "name==/respectCase/respectAccents \"Jo Jane\" or address.zip>/number 2700 # Jo Jane; Lea Long",
+    "address.zip>=/number 1900 and address.zip</number 2700                   # Jo Jane; Ka Keller",
+    // lax mode matches array elements
+    "lang==/respectCase/respectAccents dk                                      # Ka Keller; Lea Long",
+  })
+  public void jsonPathModeSelect(String testcase) throws FieldException, QueryValidationException {
+    // the embedded PostgreSQL is older, use DB_HOST etc. to run this against PostgreSQL >= 12
+    Assume.assumeTrue("jsonpath requires PostgreSQL >= 12", serverMajorVersion() >= 12);
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setJsonPathMode(true);
+    assertThat(aCql2pgJson.cql2pgJson(testcase.substring(0, testcase.indexOf('#'))), containsString(" @@ "));
+    select(aCql2pgJson, testcase);
+  }
+
+  @Test
+  public void jsonPathModeNested() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setJsonPathMode(true);
+    // the right operand cannot be expressed, each left subtree is compiled once
+    assertThat(aCql2pgJson.toSql("((a>/number 1 and b>/number 2) or c>/number 3) and d=x").getWhere(),
+        startsWith("(users.user_data @@ '(($.\"a\" > 1 && $.\"b\" > 2) || $.\"c\" > 3)') AND ("));
+  }
+
+  @Test
+  public void jsonPathMode() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setJsonPathMode(true);
+    assertEquals("users.user_data @@ '($.\"name\" == \"Lea\" && $.\"zip\" > 3)'",
+        aCql2pgJson.toSql("name==/respectCase/respectAccents Lea AND zip>/number 3").getWhere());
+    assertEquals("users.user_data @@ '(($.\"active\" == true || $.\"active\" == \"true\")"
+        + " || $.\"a\".\"b\" == \"O''Neil\")'",
+        aCql2pgJson.toSql("active==/respectCase/respectAccents true OR a.b==/respectCase/respectAccents O'Neil").getWhere());
+    assertEquals("users.user_data @@ '$.\"zip\" == 0.03'",
+        aCql2pgJson.toSql("zip=/number 3e-2").getWhere());
+    // name==Lea ignores case and accents: fall back for this subtree only
+    String where = aCql2pgJson.toSql("name==Lea AND zip>=/number 3").getWhere();
+    assertThat(where, allOf(containsString(" LIKE "), endsWith("(users.user_data @@ '$.\"zip\" >= 3')")));
+    // NOT keeps the SQL translation
+    where = aCql2pgJson.toSql("active==/respectCase/respectAccents true NOT active==/respectCase/respectAccents false")
+        .getWhere();
+    assertThat(where, allOf(startsWith("(users.user_data @@ '("),
+        endsWith("@@ '($.\"active\" == false || $.\"active\" == \"false\")') IS NOT TRUE)")));
+    aCql2pgJson.setJsonPathMode(false);
+    assertThat(aCql2pgJson.toSql("zip>/number 3").getWhere(), not(containsString("@@")));
+  }
+
+  @Test
+  public void fullTextDictionary() throws FieldException, QueryValidationException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = cql2pgJson("fulltext_db_schema.json");
+    assertEquals("to_tsvector('simple', f_unaccent(users.user_data->>'name')) "
+        + "@@ to_tsquery('simple', f_unaccent('Jo'))", aCql2pgJson.toSql("name=Jo").getWhere());
+    assertEquals("to_tsvector('english', f_unaccent(users.user_data->>'email')) "
+        + "@@ to_tsquery('english', f_unaccent('running'))", aCql2pgJson.toSql("email=running").getWhere());
+  }
+
+  @Test
+  @Parameters({
+    "Long                                    # Lea Long",
+    "keyword=Long                            # Lea Long",
+    "keyword=ka@example.com                  # Ka Keller",
+    "keyword all \"jane jo@example.com\"     # Jo Jane",
+    "keyword==\"Ka Keller\"                  # Ka Keller",
+    "keyword=\"\"                            # Jo Jane; Ka Keller; Lea Long",
+  })
+  public void multiFieldFullText(String testcase) throws CQL2PgJSONException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = cql2pgJson("fulltext_db_schema.json");
+    aCql2pgJson.setServerChoiceIndexes(Arrays.asList("email", "name"));
+    select(aCql2pgJson, testcase);
+  }
+
+  @Test
+  public void multiFieldFullTextSql() throws CQL2PgJSONException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = cql2pgJson("fulltext_db_schema.json");
+    aCql2pgJson.setServerChoiceIndexes(Arrays.asList("email", "name"));
+    String combined = "to_tsvector('simple', f_unaccent("
+        + "coalesce(users.user_data->>'name', '') || ' ' || coalesce(users.user_data->>'email', ''))) "
+        + "@@ to_tsquery('simple', f_unaccent('Long'))";
+    assertEquals(combined, aCql2pgJson.toSql("Long").getWhere());
+    assertEquals(combined, aCql2pgJson.toSql("keyword=Long").getWhere());
+    assertThat(aCql2pgJson.toSql("keyword==Long").getWhere(), containsString(" OR "));
+    aCql2pgJson.setServerChoiceIndexes(Arrays.asList("name"));
+    assertThat(aCql2pgJson.toSql("Long").getWhere(), not(containsString("coalesce")));
+  }
+
+  @Test
+  @Parameters({
+    "name any \"Lea Long Jo\" sortBy cql.relevance        # Lea Long; Jo Jane",
+    "name any \"Jo Lea Long\" sortBy cql.relevance name   # Lea Long; Jo Jane",
+    "name any \"Jo Jane Lea\" sortBy cql.relevance        # Jo Jane; Lea Long",
+  })
+  public void relevance(String testcase) throws FieldException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    select(aCql2pgJson, testcase);
+    aCql2pgJson.setRelevanceCandidateLimit(1000);
+    select(aCql2pgJson, testcase);
+  }
+
+  @Test
+  public void relevanceSql() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String ft = "to_tsvector('simple', f_unaccent(users.user_data->>'name')), to_tsquery('simple', f_unaccent('Long'))";
+    SqlSelect sqlSelect = aCql2pgJson.toSql("name=Long sortBy cql.relevance");
+    assertEquals("(ts_rank(" + ft + ")) DESC", sqlSelect.getOrderBy());
+    assertEquals(ft.replace(", to_tsquery", " @@ to_tsquery"), sqlSelect.getWhere());
+    aCql2pgJson.setRelevanceCandidateLimit(10);
+    String pk = aCql2pgJson.getPkColumnName();
+    assertEquals(pk + " IN (SELECT " + pk + " FROM users WHERE " + ft.replace(", to_tsquery", " @@ to_tsquery")
+        + " LIMIT 10)", aCql2pgJson.toSql("name=Long sortBy cql.relevance").getWhere());
+    // no full text search: nothing to rank
+    sqlSelect = aCql2pgJson.toSql("name==Long sortBy cql.relevance name");
+    assertEquals("lower(f_unaccent(users.user_data->>'name'))", sqlSelect.getOrderBy());
+    assertThat(sqlSelect.getWhere(), not(containsString("LIMIT")));
+  }
+
+  @Test
+  @Parameters({
+    "special.sql,   cql.allRecords=1 sortBy address.zip/number name           , address.zip name , a; b; c; d; e; f; g; h",
+    "special.sql,   cql.allRecords=1 sortBy address.zip/sort.descending/number name, address.zip name, h; g; d; e; f; c; b; a",
+    "special.sql,   cql.allRecords=1 sortBy name/sort.descending               , name             , h; g; f; e; d; c; b; a",
+    "special.sql,   address.zip>/number 2 sortBy name                          , name             , c; d; e; f; g; h",
+    "jo-ka-lea.sql, cql.allRecords=1 sortBy number/number name                 , number name      , Jo Jane; Ka Keller; Lea Long",
+    "jo-ka-lea.sql, cql.allRecords=1 sortBy number/sort.descending/number name/sort.descending, number name, Lea Long; Ka Keller; Jo Jane",
+    "jo-ka-lea.sql, cql.allRecords=1                                           ,                  , Jo Jane; Ka Keller; Lea Long",
+  })
+  public void keyset(String sqlFile, String cql, String sortFields, String expectedNames) throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.getDbTable().setPkColumnName("_id");
+    runSqlFile(sqlFile);
+    String columns = "_id, user_data->>'name'";
+    String [] fields = sortFields.isEmpty() ? new String [0] : sortFields.split(" ");
+    for (String field : fields) {
+      columns += ", user_data#>>'{" + field.replace('.', ',') + "}'";
+    }
+    // fetch page by page, one record per page
+    List<String> names = new ArrayList<>();
+    List<String> lastSortValues = null;
+    String lastId = null;
+    while (true) {
+      SqlSelect sqlSelect = aCql2pgJson.toSqlAfter(cql, lastSortValues, lastId);
+      String sql = "SELECT " + columns + " FROM users WHERE " + sqlSelect.getWhere()
+          + " ORDER BY " + sqlSelect.getOrderBy() + " LIMIT 1";
+      try (Statement statement = conn.createStatement();
+          ResultSet result = statement.executeQuery(sql)) {
+        if (! result.next()) {
+          break;
+        }
+        assertTrue(sql, names.size() < 10);
+        lastId = result.getString(1);
+        names.add(result.getString(2));
+        lastSortValues = new ArrayList<>();
+        for (int i = 0; i < fields.length; i++) {
+          lastSortValues.add(result.getString(3 + i));
+        }
+      }
+    }
+    assertEquals(cql, expectedNames, String.join("; ", names));
+  }
+
+  @Test
+  public void keysetSql() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String name = "lower(f_unaccent(users.user_data->>'name'))";
+    String jo = "lower(f_unaccent('Jo''s'))";
+    SqlSelect sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy name", null, null);
+    assertEquals("true", sqlSelect.getWhere());
+    assertEquals(name + ", id", sqlSelect.getOrderBy());
+    sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy name", Arrays.asList("Jo's"), "42");
+    assertEquals("(true) AND ((" + name + ", id) > (" + jo + ", '42') OR " + name + " IS NULL)",
+        sqlSelect.getWhere());
+    sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy name/sort.descending", Arrays.asList("Jo's"), "42");
+    assertEquals("(true) AND ((" + name + ", id) < (" + jo + ", '42'))", sqlSelect.getWhere());
+    assertEquals(name + " DESC, id DESC", sqlSelect.getOrderBy());
+    sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy name/sort.descending id", Arrays.asList("Jo's", "42"), null);
+    assertEquals(name + " DESC, id", sqlSelect.getOrderBy());
+    sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy name/sort.descending id", Arrays.asList("Jo's", "42"), "x");
+    assertEquals("(true) AND (" + name + " < " + jo + " OR " + name + " = " + jo + " AND id > '42')", sqlSelect.getWhere());
+    sqlSelect = aCql2pgJson.toSqlAfter("cql.allRecords=1 sortBy age/number", Arrays.asList((String) null), "42");
+    assertEquals("(true) AND (users.user_data->'age' IS NULL AND id > '42')", sqlSelect.getWhere());
+    assertEquals("users.user_data->'age', id", sqlSelect.getOrderBy());
+    assertEquals("(true) AND (id > '42')", aCql2pgJson.toSqlAfter("cql.allRecords=1", Arrays.asList(), "42").getWhere());
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1 sortBy age/number, x  , not a number",
+    "cql.allRecords=1 sortBy name age  , x  , Expected 2 sort values but got 1",
+    "name=x sortBy cql.relevance       , x  , cql.relevance cannot be used",
+    "cql.allRecords=1 sortBy name      , null, Expected 1 sort values but got 0",
+  })
+  public void keysetException(String cql, String value, String message) throws FieldException {
+    // null: no list of sort values
+    List<String> lastSortValues = "null".equals(value) ? null : Arrays.asList(value);
+    try {
+      new CQL2PgJSON("users.user_data").toSqlAfter(cql, lastSortValues, "42");
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      assertThat(e.getMessage(), containsString(message));
+    }
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1 sortBy name                , 10, 0, Jo Jane; Ka Keller; Lea Long",
+    "cql.allRecords=1 sortBy name/sort.descending,  2, 0, Lea Long; Ka Keller",
+    "cql.allRecords=1 sortBy name/sort.descending,  2, 2, Jo Jane",
+    "name=Long                                   , 10, 0, Lea Long",
+  })
+  public void deferredJoin(String cql, int limit, int offset, String expectedNames) throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.getDbTable().setPkColumnName("_id");
+    runSqlFile("jo-ka-lea.sql");
+    String sql = aCql2pgJson.toSqlDeferredJoin(cql, limit, offset);
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString("user_data").replaceFirst(".*\"name\": \"([^\"]*)\".*", "$1"));
+      }
+    }
+    assertEquals(sql, expectedNames, String.join("; ", names));
+  }
+
+  @Test
+  public void deferredJoinSql() throws FieldException, QueryValidationException {
+    assertEquals("SELECT users.* FROM (SELECT id FROM users WHERE true"
+        + " ORDER BY lower(f_unaccent(users.user_data->>'name')) LIMIT 10 OFFSET 20) AS page"
+        + " JOIN users USING (id) ORDER BY lower(f_unaccent(users.user_data->>'name'))",
+        new CQL2PgJSON("users.user_data").toSqlDeferredJoin("cql.allRecords=1 sortBy name", 10, 20));
+    assertEquals("SELECT users.* FROM (SELECT id FROM users WHERE true LIMIT 10 OFFSET 0) AS page"
+        + " JOIN users USING (id)",
+        new CQL2PgJSON("users.user_data").toSqlDeferredJoin("cql.allRecords=1", 10, 0));
+    try {
+      new CQL2PgJSON("user_data").toSqlDeferredJoin("cql.allRecords=1", 10, 0);
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      assertThat(e.getMessage(), containsString("table name"));
+    }
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1, EXACT    , 0, 3",
+    "cql.allRecords=1, CAPPED   , 2, 2",
+    "cql.allRecords=1, CAPPED   , 5, 3",
+    "name=Long       , EXACT    , 0, 1",
+  })
+  public void count(String cql, CountStrategy strategy, long threshold, long expected) throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    String sql = new CQL2PgJSON("users.user_data").toSqlCount(cql, strategy, threshold);
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      assertEquals(sql, expected, result.getLong(1));
+    }
+  }
+
+  @Test
+  public void estimatedCount() throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    String sql = new CQL2PgJSON("users.user_data").toSqlCount("cql.allRecords=1", CountStrategy.ESTIMATED, 0);
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      assertTrue(CQL2PgJSON.getEstimatedCount(result.getString(1)) > 0);
+    }
+  }
+
+  @Test
+  public void countSql() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    assertEquals("SELECT count(*) FROM users WHERE true",
+        aCql2pgJson.toSqlCount("cql.allRecords=1 sortBy name", CountStrategy.EXACT, 0));
+    assertEquals("SELECT count(*) FROM (SELECT 1 FROM users WHERE true LIMIT 1000) AS capped",
+        aCql2pgJson.toSqlCount("cql.allRecords=1", CountStrategy.CAPPED, 1000));
+    assertEquals("EXPLAIN (FORMAT JSON) SELECT 1 FROM users WHERE true",
+        aCql2pgJson.toSqlCount("cql.allRecords=1", CountStrategy.ESTIMATED, 0));
+    assertEquals(42, CQL2PgJSON.getEstimatedCount("[{\"Plan\": {\"Node Type\": \"Seq Scan\", \"Plan Rows\": 42}}]"));
+    assertEquals(CountStrategy.EXACT, CountStrategy.of(1000, 1000));
+    assertEquals(CountStrategy.ESTIMATED, CountStrategy.of(1001, 1000));
+    assertEquals("SELECT users.*, count(*) OVER () AS count FROM users WHERE true"
+        + " ORDER BY lower(f_unaccent(users.user_data->>'name')) LIMIT 10 OFFSET 0",
+        aCql2pgJson.toSqlWithCount("cql.allRecords=1 sortBy name", 10, 0));
+  }
+
+  @Test(expected = QueryValidationException.class)
+  public void estimatedCountWithoutPlanRows() throws QueryValidationException {
+    CQL2PgJSON.getEstimatedCount("[{\"Plan\": {}}]");
+  }
+
+  @Test
+  public void withCount() throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    String sql = new CQL2PgJSON("users.user_data").toSqlWithCount("cql.allRecords=1 sortBy name", 1, 1);
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      assertThat(result.getString("user_data"), containsString("Ka Keller"));
+      assertEquals(3, result.getLong("count"));
+      assertFalse(result.next());
+    }
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1, lang[]                , 2, lang[] en 3; lang[] dk 2",
+    "cql.allRecords=1, lang[] address.zip    , 1, lang[] en 3; address.zip 1900 1",
+    "name=Keller     , address.city lang[]   , 5, address.city Fred 1; lang[] dk 1; lang[] en 1; lang[] fi 1",
+    "cql.allRecords=1, number                , 5, number 4 1",
+  })
+  public void facets(String cql, String facets, int limit, String expected) throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    String sql = new CQL2PgJSON("users.user_data").toSqlFacets(cql, Arrays.asList(facets.split(" ")), limit);
+    List<String> counts = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        counts.add(result.getString("facet") + " " + result.getString("value") + " " + result.getLong("count"));
+      }
+    }
+    assertEquals(sql, expected, String.join("; ", counts));
+  }
+
+  @Test
+  public void facetsSql() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String sql = aCql2pgJson.toSqlFacets("name=Jo", Arrays.asList("address.city", "lang[]"), 5);
+    assertThat(sql, allOf(
+        containsString("SELECT 0, 'address.city', users.user_data->'address'->>'city'"
+            + " UNION ALL SELECT DISTINCT 1, 'lang[]', "),
+        containsString("jsonb_array_elements_text(CASE WHEN jsonb_typeof(users.user_data->'lang') = 'array'"),
+        containsString("WHERE rank <= 5 ORDER BY n, count DESC, value")));
+    try {
+      aCql2pgJson.toSqlFacets("name=Jo", Arrays.asList("it's"), 5);
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      assertThat(e.getMessage(), containsString("it's"));
+    }
+    try {
+      aCql2pgJson.toSqlFacets("name=Jo", Arrays.asList("address.city"), 0);
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      assertThat(e.getMessage(), containsString("limit"));
+    }
+  }
+
+  @Test
+  public void projection() throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String sql = "SELECT " + aCql2pgJson.toSqlProjection(Arrays.asList("name", "address.zip", "number"))
+        + " FROM users WHERE " + aCql2pgJson.cql2pgJson("name=Long");
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      assertEquals("{\"name\": \"Lea Long\", \"number\": null, \"address.zip\": 2791}", result.getString(1));
+    }
+  }
+
+  @Test
+  public void projectionSql() throws FieldException, QueryValidationException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    assertEquals("jsonb_build_object('id', users.user_data->'id', 'address.zip', users.user_data->'address'->'zip')",
+        aCql2pgJson.toSqlProjection(Arrays.asList("id", "address.zip")));
+    List<String> fields = new ArrayList<>();
+    for (int i = 0; i < 51; i++) {
+      fields.add("f" + i);
+    }
+    assertThat(aCql2pgJson.toSqlProjection(fields),
+        containsString("'f49', users.user_data->'f49') || jsonb_build_object('f50', users.user_data->'f50')"));
+    try {
+      aCql2pgJson.toSqlProjection(Arrays.asList("id", "a'b"));
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      assertThat(e.getMessage(), containsString("a'b"));
+    }
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1 sortBy name/sort.descending                 # Lea Long; Ka Keller; Jo Jane",
+    "name=lo* or  (email=* and address.zip=1*) sortBy name        # Ka Keller; Lea Long",
+    "name=Long not address.zip=1900                                # Lea Long",
+  })
+  public void detoastOnce(String testcase) throws Exception {
+    String [] split = testcase.split("#");
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setRelevanceCandidateLimit(10);
+    runSqlFile("jo-ka-lea.sql");
+    String sql = aCql2pgJson.toSqlDetoastOnce(split[0].trim());
+    assertThat(sql, not(containsString("users.user_data->")));
+    assertEquals(10, aCql2pgJson.getRelevanceCandidateLimit());
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString("user_data").replaceFirst(".*\"name\": \"([^\"]*)\".*", "$1"));
+      }
+    }
+    assertEquals(sql, split[1].trim(), String.join("; ", names));
+  }
+
+  @Test
+  public void detoastOnceSql() throws FieldException, QueryValidationException {
+    assertEquals("SELECT users.* FROM users CROSS JOIN LATERAL (SELECT users.jsonb || '{}'::jsonb AS jsonb"
+        + " OFFSET 0) AS detoasted WHERE lower(f_unaccent(detoasted.jsonb->>'name'))"
+        + " LIKE lower(f_unaccent('users.jsonb''users.jsonb'))",
+        new CQL2PgJSON("users.jsonb").toSqlDetoastOnce("name==\"users.jsonb'users.jsonb\""));
+    assertThat(new CQL2PgJSON(Arrays.asList("users.user_data", "users.group_data"))
+        .toSqlDetoastOnce("name=a and users.group_data.name=b"), allOf(
+        containsString("(SELECT users.user_data || '{}'::jsonb AS user_data, users.group_data || '{}'::jsonb AS group_data"),
+        containsString("detoasted.user_data->>'name'"),
+        containsString("detoasted.group_data->>'name'")));
+  }
+
+  @Test
+  @Parameters({
+    "groups.jsonb.group=staff                  # Jo Jane; Ka Keller",
+    "groups.jsonb.group=student                # Lea Long",
+    "groups.jsonb.group=faculty                #",
+    "groups.jsonb.group=staff and name=Jo      # Jo Jane",
+    "groups.jsonb.group=staff or name=Lea      # Jo Jane; Ka Keller; Lea Long",
+    "name=* not groups.jsonb.group=student     # Jo Jane; Ka Keller",
+  })
+  public void foreignKey(String testcase) throws FieldException, URISyntaxException {
+    select(cql2pgJson("foreignkey_db_schema.json"), "foreignKey.sql", testcase);
+  }
+
+  @Test
+  @Parameters({
+    "members.jsonb.name=Lea                    # student",
+    "members.jsonb.name=*                      # staff; student",
+    "group=staff and members.jsonb.name=Ka     # staff",
+  })
+  public void foreignKeyReverse(String testcase) throws Exception {
+    String [] split = testcase.split("#");
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("groups.jsonb");
+    aCql2pgJson.setDbSchemaPath(Paths.get(ClassLoader.getSystemResource("foreignkey_db_schema.json").toURI()).toString());
+    runSqlFile("foreignKey.sql");
+    String sql = "SELECT jsonb->>'group' FROM groups WHERE " + aCql2pgJson.cql2pgJson(split[0].trim())
+        + " ORDER BY jsonb->>'group'";
+    List<String> groups = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        groups.add(result.getString(1));
+      }
+    }
+    assertEquals(sql, split[1].trim(), String.join("; ", groups));
+  }
+
+  @Test
+  public void foreignKeySql() throws Exception {
+    assertEquals("EXISTS (SELECT 1 FROM groups WHERE users.groupId = groups._id"
+        + " AND (lower(f_unaccent(groups.jsonb->>'group')) LIKE lower(f_unaccent('staff'))))",
+        cql2pgJson("foreignkey_db_schema.json").cql2pgJson("groups.jsonb.group==staff"));
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("tenant1.groups.jsonb");
+    aCql2pgJson.setDbSchemaPath(Paths.get(ClassLoader.getSystemResource("foreignkey_db_schema.json").toURI()).toString());
+    assertEquals("EXISTS (SELECT 1 FROM tenant1.members WHERE tenant1.members.groupId = tenant1.groups._id"
+        + " AND (lower(f_unaccent(tenant1.members.jsonb->>'name')) LIKE lower(f_unaccent('Jo'))))",
+        aCql2pgJson.cql2pgJson("members.jsonb.name==Jo"));
+    // the index must start with the jsonb column of the other table
+    assertThat(aCql2pgJson.cql2pgJson("users.user_data.name==Jo"),
+        startsWith("lower(f_unaccent(tenant1.groups.jsonb->'users'->'user_data'->>'name'))"));
+    assertThat(aCql2pgJson.cql2pgJson("members.name==Jo"),
+        startsWith("lower(f_unaccent(tenant1.groups.jsonb->'members'->>'name'))"));
+    // no foreign key between users and other
+    assertThat(cql2pgJson("foreignkey_db_schema.json").cql2pgJson("other.jsonb.name==x"),
+        startsWith("lower(f_unaccent(users.user_data->'other'->'jsonb'->>'name'))"));
+  }
+
+  @Test
+  @Parameters({
+    "name=Jo                              # Jo Jane",
+    "name=* sortBy name/sort.descending   # Lea Long; Ka Keller; Jo Jane",
+  })
+  public void sqlTemplate(String testcase) throws Exception {
+    String [] split = testcase.split("#");
+    String cql = split[0].trim();
+    CQL2PgJSON template = new CQL2PgJSON(SqlTemplate.SCHEMA_PLACEHOLDER + ".users.user_data");
+    SqlTemplate sqlTemplate = template.toSqlTemplate(cql);
+    assertEquals(new CQL2PgJSON("tenant1.users.user_data").toSql(cql).toString(),
+        sqlTemplate.fill("tenant1").toString());
+    runSqlFile("jo-ka-lea.sql");
+    String sql = "SELECT public.users.user_data->>'name' FROM public.users " + sqlTemplate.fill("public");
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString(1));
+      }
+    }
+    assertEquals(sql, split[1].trim(), String.join("; ", names));
+  }
+
+  private CQL2PgJSON partitionCql2pgJson(String field) throws FieldException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON(field);
+    aCql2pgJson.setDbSchemaPath(Paths.get(ClassLoader.getSystemResource("partition_db_schema.json").toURI()).toString());
+    return aCql2pgJson;
+  }
+
+  @Test
+  @Parameters({
+    "date>=2020-01-01                         , events_2019, b; c",
+    "date<2020-01-01                          , events_2020, a",
+    "date==2020-06-15                         , events_2019, c",
+    "date>2019-06-01 and date<=2019-12-31     , events_2020, a",
+  })
+  public void partitionKey(String cql, String prunedPartition, String expectedNames) throws Exception {
+    runSqlFile("partition.sql");
+    String sql = "SELECT jsonb->>'name' FROM events WHERE " + partitionCql2pgJson("events.jsonb").cql2pgJson(cql)
+        + " ORDER BY jsonb->>'name'";
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString(1));
+      }
+    }
+    assertEquals(sql, expectedNames, String.join("; ", names));
+    String plan = "";
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery("EXPLAIN " + sql)) {
+      while (result.next()) {
+        plan += result.getString(1) + "\n";
+      }
+    }
+    assertThat(plan, allOf(containsString("events_"), not(containsString(prunedPartition))));
+  }
+
+  @Test
+  @Parameters({
+    "events.jsonb, date==2020-06-15                          , (lower(f_unaccent(events.jsonb->>'date')) LIKE lower(f_unaccent('2020-06-15'))) AND date_key = '2020-06-15'",
+    "events.jsonb, date<2020-01-01                           , (events.jsonb->>'date' <'2020-01-01') AND date_key < '2020-01-01'",
+    "events.jsonb, date==Jan                                 , lower(f_unaccent(events.jsonb->>'date')) LIKE lower(f_unaccent('Jan'))",
+    "events.jsonb, date==2020*                               , lower(f_unaccent(events.jsonb->>'date')) LIKE lower(f_unaccent('2020%'))",
+    "events.jsonb, date<>2020                                , lower(f_unaccent(events.jsonb->>'date')) NOT LIKE lower(f_unaccent('2020'))",
+    "events.jsonb, name==2020                                , lower(f_unaccent(events.jsonb->>'name')) LIKE lower(f_unaccent('2020'))",
+    "shards.jsonb, id==11111111-1111-1111-1111-111111111111  , (id='11111111-1111-1111-1111-111111111111') AND shard_id = '11111111-1111-1111-1111-111111111111'",
+    "shards.jsonb, id>11111111-1111-1111-1111-111111111111   , (id>'11111111-1111-1111-1111-111111111111') AND shard_id > '11111111-1111-1111-1111-111111111111'",
+    "shards.jsonb, id=1*                                     , ((id>='10000000-0000-0000-0000-000000000000' and id<='1fffffff-ffff-ffff-ffff-ffffffffffff'))"
+        + " AND shard_id >= '10000000-0000-0000-0000-000000000000' AND shard_id <= '1fffffff-ffff-ffff-ffff-ffffffffffff'",
+    "shards.jsonb, id=*                                      , true",
+  })
+  public void partitionKeySql(String field, String cql, String expectedSql) throws Exception {
+    assertEquals(expectedSql, partitionCql2pgJson(field).cql2pgJson(cql));
+  }
+
+  @Test
+  @Parameters({
+    "events.jsonb, date==2020-06-15T23:00:00+0200                   , c",
+    "events.jsonb, date<2020-01-01T10:00                            , a",
+    "logs.jsonb  , metadata.updatedDate>=\"2019-02-28T18:40+02:00\" , a; b",
+    "logs.jsonb  , metadata.updatedDate==2020-01-01                 , b",
+    "logs.jsonb  , metadata.updatedDate<2019-02-28T17:40+0100       , c",
+  })
+  public void partitionKeyTyped(String field, String cql, String expectedNames) throws Exception {
+    runSqlFile("partition.sql");
+    CQL2PgJSON aCql2pgJson = partitionCql2pgJson(field);
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("partition.json")));
+    String sql = "SELECT jsonb->>'name' FROM " + field.substring(0, field.indexOf('.'))
+        + " WHERE " + aCql2pgJson.cql2pgJson(cql) + " ORDER BY jsonb->>'name'";
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString(1));
+      }
+    }
+    assertEquals(sql, expectedNames, String.join("; ", names));
+  }
+
+  @Test
+  public void partitionKeyTypedSql() throws Exception {
+    CQL2PgJSON aCql2pgJson = partitionCql2pgJson("logs.jsonb");
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("partition.json")));
+    assertThat(aCql2pgJson.cql2pgJson("metadata.updatedDate>=\"2019-02-28T18:40+02:00\""),
+        endsWith(" AND updated_key >= '2019-02-28T16:40:00.000+0000'"));
+    assertThat(aCql2pgJson.cql2pgJson("metadata.updatedDate==2020-01-01"), endsWith(
+        " AND updated_key >= '2020-01-01T00:00:00.000+0000' AND updated_key < '2020-01-02T00:00:00.000+0000'"));
+    aCql2pgJson = partitionCql2pgJson("events.jsonb");
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("partition.json")));
+    assertThat(aCql2pgJson.cql2pgJson("date==1990-02-01T23:00:00+0200"), endsWith(" AND date_key = '1990-02-01'"));
+  }
+
+  @Test
+  @Parameters({
+    "id==11111111-1111-1111-1111-111111111111                                                 # 11111111-1111-1111-1111-111111111111 # ALL # ALL",
+    "id==1111111A-1111-1111-1111-111111111111 or id==22222222-2222-2222-2222-222222222222     # 1111111a-1111-1111-1111-111111111111 OR 22222222-2222-2222-2222-222222222222 # ALL # ALL",
+    "id==11111111-1111-1111-1111-111111111111 and id==22222222-2222-2222-2222-222222222222    # NONE # ALL # ALL",
+    "id=1* sortBy name                                                                        # [10000000-0000-0000-0000-000000000000,1fffffff-ffff-ffff-ffff-ffffffffffff] # ALL # ALL",
+    "id>11111111-1111-1111-1111-111111111111 and id<22222222-2222-2222-2222-222222222222      # (11111111-1111-1111-1111-111111111111,22222222-2222-2222-2222-222222222222) # ALL # ALL",
+    "id==11111111-1111-1111-1111-111111111111 or name=x                                       # ALL # ALL # ALL",
+    "id==11111111-1111-1111-1111-111111111111 not id==11111111-1111-1111-1111-111111111111    # 11111111-1111-1111-1111-111111111111 # ALL # ALL",
+    "id<>11111111-1111-1111-1111-111111111111                                                 # ALL # ALL # ALL",
+    "tenantId==/respectCase/respectAccents diku and (year>=2019 and year<2021)                # ALL # diku # [2019,2021)",
+    "tenantId==diku or tenantId==/respectCase/respectAccents mit                              # ALL # ALL # ALL",
+    "(tenantId==/respectCase/respectAccents diku or tenantId==/respectCase/respectAccents mit) and year==2020 # ALL # diku OR mit # 2020",
+    "year=2020                                                                                # ALL # ALL # ALL",
+    "cql.allRecords=1                                                                         # ALL # ALL # ALL",
+  })
+  public void keyConstraints(String testcase) throws Exception {
+    String [] s = testcase.split("#");
+    Map<String, KeyConstraint> constraints = partitionCql2pgJson("shards.jsonb").getKeyConstraints(s[0].trim());
+    assertEquals(Arrays.asList("id", "tenantId", "year"), new ArrayList<>(constraints.keySet()));
+    assertEquals("id",       s[1].trim(), constraints.get("id").toString());
+    assertEquals("tenantId", s[2].trim(), constraints.get("tenantId").toString());
+    assertEquals("year",     s[3].trim(), constraints.get("year").toString());
+  }
+
+  @Test
+  @Parameters({
+    "metadata.updatedDate>=\"2019-02-28T18:40+02:00\"                  # [2019-02-28T16:40:00.000+0000,]",
+    "metadata.updatedDate==2020-01-01                                  # [2020-01-01T00:00:00.000+0000,2020-01-02T00:00:00.000+0000)",
+    "metadata.updatedDate<=2020-01-01 and metadata.updatedDate>2019-12-31T23:00-0100 # (2020-01-01T00:00:00.000+0000,2020-01-02T00:00:00.000+0000)",
+    "metadata.updatedDate==2020-02-30                                  # ALL",
+    "metadata.updatedDate<yesterday                                    # ALL",
+  })
+  public void keyConstraintsDate(String testcase) throws Exception {
+    String [] s = testcase.split("#");
+    CQL2PgJSON aCql2pgJson = partitionCql2pgJson("logs.jsonb");
+    aCql2pgJson.setRecordSchema(new org.folio.cql2pgjson.tbd.Schema(Util.getResource("partition.json")));
+    assertEquals(s[1].trim(), aCql2pgJson.getKeyConstraints(s[0].trim()).get("metadata.updatedDate").toString());
+  }
+
+  @Test
+  public void keyConstraintsWithoutRoutingKeys() throws Exception {
+    Map<String, KeyConstraint> constraints = cql2pgJson.getKeyConstraints("id=*");
+    assertEquals(Collections.singletonList("id"), new ArrayList<>(constraints.keySet()));
+    assertTrue(constraints.get("id").isUnbounded());
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1                   #                              # Mo Miller; Jo Jane; Ka Keller; Lea Long; Ned Nash",
+    "cql.allRecords=1 sortBy name       #                              # Mo Miller; Jo Jane; Ka Keller; Lea Long; Ned Nash",
+    "name=*l*                           #                              # Mo Miller; Ka Keller; Lea Long",
+    "cql.allRecords=1                   # 2019-03-11T10:00:00.000+0000 # Ka Keller; Lea Long; Ned Nash",
+    "cql.allRecords=1                   # 2019-03-13T10:00:00.000+0000 #",
+  })
+  public void changedSince(String testcase) throws Exception {
+    String [] split = testcase.split("#", -1);
+    String cql = split[0].trim();
+    String watermark = split[1].trim().isEmpty() ? null : split[1].trim();
+    String expectedNames = split[2].trim();
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.getDbTable().setPkColumnName("_id");
+    runSqlFile("changedSince.sql");
+    // poll one record at a time
+    List<String> names = new ArrayList<>();
+    String lastId = null;
+    while (true) {
+      SqlSelect sqlSelect = aCql2pgJson.toSqlChangedSince(cql, watermark, lastId);
+      String sql = "SELECT _id, user_data->>'name', user_data->'metadata'->>'updatedDate' FROM users"
+          + " WHERE " + sqlSelect.getWhere() + " ORDER BY " + sqlSelect.getOrderBy() + " LIMIT 1";
+      try (Statement statement = conn.createStatement();
+          ResultSet result = statement.executeQuery(sql)) {
+        if (! result.next()) {
+          break;
+        }
+        assertTrue(sql, names.size() < 10);
+        lastId = result.getString(1);
+        names.add(result.getString(2));
+        watermark = result.getString(3);
+      }
+    }
+    assertEquals(expectedNames, String.join("; ", names));
+  }
+
+  @Test
+  public void changedSinceSql() throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String updatedDate = "users.user_data->'metadata'->>'updatedDate'";
+    SqlSelect sqlSelect = aCql2pgJson.toSqlChangedSince("name=Jo sortBy name", null, null);
+    assertEquals(updatedDate + ", id", sqlSelect.getOrderBy());
+    assertEquals(aCql2pgJson.cql2pgJson("name=Jo"), sqlSelect.getWhere());
+    sqlSelect = aCql2pgJson.toSqlChangedSince("name=Jo", "2019-03-11T10:00:00.000+0000", null);
+    assertEquals("(" + aCql2pgJson.cql2pgJson("name=Jo") + ") AND "
+        + updatedDate + " > '2019-03-11T10:00:00.000+0000'", sqlSelect.getWhere());
+    sqlSelect = aCql2pgJson.toSqlChangedSince("name=Jo", "2019-03-11T10:00:00.000+0000",
+        "11111111-1111-1111-1111-111111111111");
+    assertEquals("(" + aCql2pgJson.cql2pgJson("name=Jo") + ") AND "
+        + updatedDate + " >= '2019-03-11T10:00:00.000+0000' AND ("
+        + updatedDate + " > '2019-03-11T10:00:00.000+0000' OR id > '11111111-1111-1111-1111-111111111111')",
+        sqlSelect.getWhere());
+  }
+
+  @Test
+  @Parameters({
+    "null                     , 2019-03-11 , x'",
+    "null                     , 2019-03-11', null",
+    "foreignkey_db_schema.json, 2019-03-11 , null",
+  })
+  public void changedSinceException(@Nullable String dbSchema, String watermark, @Nullable String lastId)
+      throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    if (dbSchema != null) {
+      aCql2pgJson.setDbSchemaPath(Paths.get(ClassLoader.getSystemResource(dbSchema).toURI()).toString());
+    }
+    try {
+      aCql2pgJson.toSqlChangedSince("name=Jo", watermark, lastId);
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void fanOutSql() throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data", Arrays.asList("name", "email"));
+    SqlFanOut fanOut = aCql2pgJson.toSqlFanOut("Jo or (address.zip=1 or lang=en) sortBy name/sort.descending address.zip/number");
+    assertEquals(Arrays.asList(
+        aCql2pgJson.cql2pgJson("name=Jo"),
+        aCql2pgJson.cql2pgJson("email=Jo"),
+        aCql2pgJson.cql2pgJson("address.zip=1"),
+        aCql2pgJson.cql2pgJson("lang=en")), fanOut.getWheres());
+    assertEquals("lower(f_unaccent(users.user_data->>'name')) DESC, "
+        + "users.user_data->'address'->'zip', id", fanOut.getOrderBy());
+    assertEquals("id", fanOut.getPkColumnName());
+    assertEquals(SqlFanOut.SortKeyType.NUMBER, fanOut.getSortKeys().get(1).getType());
+
+    fanOut = aCql2pgJson.toSqlFanOut("name=Jo and (address.zip=1 or lang=en) sortBy address.zip id/sort.descending");
+    assertEquals(Arrays.asList(aCql2pgJson.cql2pgJson("name=Jo and (address.zip=1 or lang=en)")), fanOut.getWheres());
+    assertEquals("lower(f_unaccent(users.user_data->'address'->>'zip')), id DESC", fanOut.getOrderBy());
+
+    // same translation as toSql, the =* of an OR is dropped
+    fanOut = aCql2pgJson.toSqlFanOut("name=Jo or (address.zip=1 or email=*) or lang=*");
+    assertEquals(Arrays.asList(aCql2pgJson.cql2pgJson("name=Jo"), aCql2pgJson.cql2pgJson("address.zip=1")),
+        fanOut.getWheres());
+    assertEquals(aCql2pgJson.cql2pgJson("name=Jo or address.zip=1"),
+        aCql2pgJson.cql2pgJson("name=Jo or (address.zip=1 or email=*) or lang=*"));
+  }
+
+  @Test(expected = QueryValidationException.class)
+  public void fanOutRelevance() throws Exception {
+    new CQL2PgJSON("users.user_data").toSqlFanOut("name=Jo sortBy cql.relevance");
+  }
+
+  @Test
+  @Parameters({
+    "true , name=* sortBy name/sort.descending; name=Jo; address.zip>2000 sortBy address.zip/number; name=Xyz, 2 1 0 0"
+      + ", 0 1 3 Lea Long; 0 2 3 Ka Keller; 1 1 1 Jo Jane; 2 0 2 null; 3 0 0 null",
+    "false, name=* sortBy name; name=Xyz                                                              , 1 1"
+      + ", 0 1 0 Jo Jane",
+  })
+  public void batch(boolean withCount, String cqls, String limits, String expected) throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    List<Integer> limitList = new ArrayList<>();
+    for (String limit : limits.split(" ")) {
+      limitList.add(Integer.parseInt(limit));
+    }
+    String sql = new CQL2PgJSON("users.user_data").toSqlBatch(Arrays.asList(cqls.split("; ")), limitList, withCount);
+    List<String> rows = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        String userData = result.getString("user_data");
+        rows.add(result.getInt("query") + " " + result.getLong("position") + " " + result.getLong("count") + " "
+            + (userData == null ? "null" : new ObjectMapper().readTree(userData).path("name").asText()));
+      }
+    }
+    assertEquals(sql, expected, String.join("; ", rows));
+  }
+
+  @Test
+  public void batchSql() throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    assertEquals("SELECT * FROM ("
+        + "(SELECT 0 AS query, row_number() OVER (ORDER BY lower(f_unaccent(users.user_data->>'name'))) AS position,"
+        + " count(*) OVER () AS count, users.* FROM users WHERE true"
+        + " ORDER BY lower(f_unaccent(users.user_data->>'name')) LIMIT 5)"
+        + " UNION ALL (SELECT 1 AS query, 0 AS position, c.count, users.* FROM"
+        + " (SELECT count(*) AS count FROM users WHERE " + aCql2pgJson.cql2pgJson("name=Jo") + ") AS c"
+        + " LEFT JOIN users ON false)"
+        + ") AS batch ORDER BY query, position",
+        aCql2pgJson.toSqlBatch(Arrays.asList("cql.allRecords=1 sortBy name", "name=Jo"), Arrays.asList(5, 0), true));
+  }
+
+  @Test
+  @Parameters({
+    "users.user_data, 1 2",
+    "users.user_data, -1",
+    "user_data      , 1",
+  })
+  public void batchException(String field, String limits) throws Exception {
+    List<Integer> limitList = new ArrayList<>();
+    for (String limit : limits.split(" ")) {
+      limitList.add(Integer.parseInt(limit));
+    }
+    try {
+      new CQL2PgJSON(field).toSqlBatch(Arrays.asList("name=Jo"), limitList, true);
+      fail("QueryValidationException expected");
+    } catch (QueryValidationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  @Parameters({
+    "SYSTEM   , cql.allRecords=1 sortBy name, Jo Jane; Ka Keller; Lea Long",
+    "BERNOULLI, cql.allRecords=1 sortBy name, Jo Jane; Ka Keller; Lea Long",
+    "BERNOULLI, name=Jo                     , Jo Jane",
+  })
+  public void sample(TableSample.Method method, String cql, String expectedNames) throws Exception {
+    runSqlFile("jo-ka-lea.sql");
+    // 100 percent is the complete table, the result is exact
+    TableSample tableSample = new TableSample(method, 100, 42L);
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    String sql = "SELECT user_data->>'name' FROM users " + aCql2pgJson.toSql(cql, tableSample);
+    List<String> names = new ArrayList<>();
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      while (result.next()) {
+        names.add(result.getString(1));
+      }
+    }
+    assertEquals(sql, expectedNames, String.join("; ", names));
+    sql = aCql2pgJson.toSqlSampleCount(cql, tableSample);
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery(sql)) {
+      assertTrue(result.next());
+      assertEquals(sql, names.size(), result.getLong("sample_count"));
+      assertEquals(sql, names.size(), result.getLong("count"));
+    }
+  }
+
+  @Test
+  public void sampleSql() throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    SqlSelect sqlSelect = aCql2pgJson.toSql("cql.allRecords=1 sortBy name",
+        new TableSample(TableSample.Method.SYSTEM, 1, 42L));
+    assertEquals("TABLESAMPLE SYSTEM (1) REPEATABLE (42) WHERE true"
+        + " ORDER BY lower(f_unaccent(users.user_data->>'name'))", sqlSelect.toString());
+    assertEquals("SELECT count(*) AS sample_count, round(count(*) * 100.0 / 2.5)::bigint AS count"
+        + " FROM users TABLESAMPLE BERNOULLI (2.5) WHERE true",
+        aCql2pgJson.toSqlSampleCount("cql.allRecords=1 sortBy name",
+            new TableSample(TableSample.Method.BERNOULLI, 2.5, null)));
+  }
+
+  @Test
+  public void sampleScaleSql() throws SQLException {
+    // integer percent: 3 * 100 / 7 must not be an integer division
+    TableSample tableSample = new TableSample(TableSample.Method.SYSTEM, 7, null);
+    try (Statement statement = conn.createStatement();
+        ResultSet result = statement.executeQuery("SELECT " + tableSample.scaleSql("3"))) {
+      assertTrue(result.next());
+      assertEquals(tableSample.scale(3), result.getLong(1));
+    }
+  }
+
+  /**
+   * @param dbSchema  resource name of the schema.json file to use
+   * @return CQL2PgJSON for users.user_data
+   */
+  private CQL2PgJSON cql2pgJson(String dbSchema) throws FieldException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data");
+    aCql2pgJson.setDbSchemaPath(Paths.get(ClassLoader.getSystemResource(dbSchema).toURI()).toString());
+    return aCql2pgJson;
+  }
+
+  @Test
+  @Parameters({
+    "address.zip==4                                   # d; f",
+    "address.zip==4.0                                 # e",
+    "address.zip==/respectCase/respectAccents 4       # d; f",
+    "address.zip==/number 4e0                         # d; e; f",
+    "address.city==1234                               # e",
+    "address.city==01234                              # g",
+    "address.city==/respectCase/respectAccents \\*?\\* # a; b",
+    "address.city==/respectCase/respectAccents *      # a; b; c; d; e; f; g; h",
+    "lang==dk                                         #",
+    "lang==/respectCase/respectAccents dk             # c; d; e; f; g; h",
+    "lang==/respectCase/respectAccents fi             # c; d",
+  })
+  public void containment(String testcase) throws FieldException, URISyntaxException {
+    select(cql2pgJson("containment_db_schema.json"), "special.sql", testcase);
+  }
+
+  @Test
+  public void containmentSql() throws FieldException, QueryValidationException, URISyntaxException {
+    CQL2PgJSON aCql2pgJson = cql2pgJson("containment_db_schema.json");
+    assertEquals("(users.user_data @> '{\"name\":\"Lea Long\"}' OR users.user_data @> '{\"name\":[\"Lea Long\"]}')",
+        aCql2pgJson.toSql("name==/respectCase/respectAccents \"Lea Long\"").getWhere());
+    assertEquals("(users.user_data @> '{\"active\":true}' OR users.user_data @> '{\"active\":[true]}'"
+        + " OR users.user_data @> '{\"active\":\"true\"}' OR users.user_data @> '{\"active\":[\"true\"]}')",
+        aCql2pgJson.toSql("active==/respectCase/respectAccents true").getWhere());
+    assertEquals("(users.user_data @> '{\"a\":{\"b\":\"O''Neil\"}}' OR users.user_data @> '{\"a\":{\"b\":[\"O''Neil\"]}}')",
+        aCql2pgJson.toSql("a.b==/respectCase/respectAccents O'Neil").getWhere());
+    assertThat(aCql2pgJson.toSql("name==Lea").getWhere(), containsString(" LIKE "));
+    // ignoring case matches "TRUE", containment would not
+    assertThat(aCql2pgJson.toSql("active==true").getWhere(), containsString(" LIKE "));
+    // containment compares numbers numerically, LIKE does not
+    assertThat(aCql2pgJson.toSql("zip==/respectCase/respectAccents 4").getWhere(), containsString(" LIKE "));
+    assertThat(aCql2pgJson.toSql("name<>/respectCase/respectAccents Lea").getWhere(), containsString(" NOT LIKE "));
+  }
+
   @Test
   @Parameters({
     "name< \"Ka Keller\"  # Jo Jane",
@@ -722,9 +1756,24 @@ public class CQL2PgJSONTest extends DatabaseTestBase {
     s = cql2pgJson.toSql("name=* OR email=* OR zip=*");
     assertEquals("true", s.getWhere());
     s = cql2pgJson.toSql("name=\"\"");  // any that has a name
-    assertEquals("users.user_data->>'name' ~ ''", s.getWhere());
+    assertEquals("users.user_data ? 'name' AND users.user_data->>'name' IS NOT NULL", s.getWhere());
     s = cql2pgJson.toSql("name=\"\" OR email=\"\"");
-    assertEquals("(users.user_data->>'name' ~ '') OR (users.user_data->>'email' ~ '')", s.getWhere());
+    assertEquals("(users.user_data ? 'name' AND users.user_data->>'name' IS NOT NULL)"
+        + " OR (users.user_data ? 'email' AND users.user_data->>'email' IS NOT NULL)", s.getWhere());
+    s = cql2pgJson.toSql("address.city=\"\"");
+    assertEquals("users.user_data->'address'->>'city' IS NOT NULL", s.getWhere());
+  }
+
+  @Test
+  @Parameters({
+    "cql.allRecords=1 NOT name=\"\"          , users.user_data->>'name' IS NULL",
+    "cql.allRecords=1 NOT name==\"\"         , (lower(f_unaccent(users.user_data->>'name')) LIKE lower(f_unaccent(''))) IS NOT TRUE",
+    "lang==[]                                , users.user_data->'lang' = '[]'",
+    "lang ==/respectCase/respectAccents []   , users.user_data->'lang' = '[]'",
+    "cql.allRecords=1 NOT lang<>[]           , (users.user_data->'lang' <> '[]') IS NOT TRUE",
+  })
+  public void definedAndEmptySql(String cql, String expectedSql) throws QueryValidationException {
+    assertEquals(expectedSql, cql2pgJson.toSql(cql).getWhere());
   }
 
   @Test(expected = QueryValidationException.class)
@@ -0,0 +1,111 @@
+package org.z3950.zing.cql.cql2pgjson;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.folio.cql2pgjson.executor.CopyExporter;
+import org.folio.cql2pgjson.executor.ExecutionStats;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class CopyExporterTest extends DatabaseTestBase {
+  @BeforeClass
+  public static void runOnceBeforeClass() {
+    setupDatabase();
+    runSqlFile("users.sql");
+    runSqlFile("jo-ka-lea.sql");
+  }
+
+  @AfterClass
+  public static void runOnceAfterClass() {
+    closeDatabase();
+  }
+
+  @Test
+  public void text() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CQL2PgJSON cql2pgJson = new CQL2PgJSON("users.user_data");
+    ExecutionStats stats = new CopyExporter(conn).export("users",
+        cql2pgJson.toSqlProjection(Arrays.asList("name", "address.zip")), cql2pgJson.toSql("name=* sortBy name"), out);
+    String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    assertEquals("{\"name\": \"Jo Jane\", \"address.zip\": 2450}\n"
+        + "{\"name\": \"Ka Keller\", \"address.zip\": 1900}\n"
+        + "{\"name\": \"Lea Long\", \"address.zip\": 2791}\n", text);
+    assertEquals(3, stats.getRows());
+    assertEquals(out.size(), stats.getBytes());
+  }
+
+  @Test
+  public void textNeedsSingleJsonbColumn() throws Exception {
+    for (String sql : Arrays.asList(
+        "SELECT user_data->>'name' FROM users",
+        "SELECT 'a\nb'::json",
+        "SELECT user_data, user_data FROM users")) {
+      try {
+        new CopyExporter(conn).export(sql, new ByteArrayOutputStream());
+        fail("IllegalArgumentException expected: " + sql);
+      } catch (IllegalArgumentException e) {
+        assertTrue(e.getMessage(), e.getMessage().contains(sql));
+      }
+    }
+  }
+
+  @Test
+  public void jsonLines() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new CopyExporter(conn).export("SELECT '{\"a\": \"b\\\\c\\nd\"}'::jsonb UNION ALL SELECT '[]'::jsonb", out);
+    String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    // no COPY text format escaping like b\\\\c
+    assertEquals("{\"a\": \"b\\\\c\\nd\"}\n[]\n", text);
+    assertEquals("b\\c\nd", new ObjectMapper().readTree(text.split("\n")[0]).path("a").asText());
+  }
+
+  @Test
+  public void binary() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CopyExporter copyExporter = new CopyExporter(conn);
+    copyExporter.setBinary(true);
+    assertTrue(copyExporter.isBinary());
+    ExecutionStats stats = copyExporter.export("SELECT user_data FROM users", Channels.newChannel(out));
+    assertEquals(3, stats.getRows());
+    String signature = "PGCOPY\n\377\r\n\0";
+    assertEquals(signature, new String(out.toByteArray(), 0, signature.length(), StandardCharsets.ISO_8859_1));
+  }
+
+  @Test
+  public void fileAndProgress() throws Exception {
+    Path file = Files.createTempFile("cql2pgjson", ".txt");
+    try {
+      CopyExporter copyExporter = new CopyExporter(conn);
+      List<ExecutionStats> progress = new ArrayList<>();
+      copyExporter.setProgressListener(progress::add, 10);
+      ExecutionStats stats = copyExporter.export(
+          "SELECT to_jsonb(_id) FROM users WHERE user_data->>'name' LIKE '%a%' ORDER BY _id", file);
+      assertEquals(3, stats.getRows());
+      assertEquals(3 * 39, Files.size(file));
+      assertEquals(3 * 39, stats.getBytes());
+      assertFalse(progress.isEmpty());
+      assertTrue(progress.get(0).getBytes() >= 10);
+      assertTrue(progress.get(progress.size() - 1).getRows() <= 3);
+      assertEquals("\"11111111-1111-1111-1111-111111111111\"", Files.readAllLines(file).get(0));
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidProgressInterval() {
+    new CopyExporter(conn).setProgressListener(stats -> { }, 0);
+  }
+}
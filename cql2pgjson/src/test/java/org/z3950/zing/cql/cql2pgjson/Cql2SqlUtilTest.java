@@ -1,7 +1,9 @@
 package org.z3950.zing.cql.cql2pgjson;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -112,6 +114,50 @@ public class Cql2SqlUtilTest {
     assertThat(Cql2SqlUtil.cql2regexp(cql), is(sql));
   }
 
+  public Object cql2stringParams() {
+    return params(
+        "           ",
+        "'     '    ",
+        "a     a    ",
+        "\\    \\   ",
+        "\\*   *    ",
+        "\\?   ?    ",
+        "\\^   ^    ",
+        "\\\"   \"    ",
+        "\\a   a    ",
+        "\\\\  \\   "
+        );
+  }
+
+  @Test
+  @Parameters(method = "cql2stringParams")
+  public void cql2string(String cql, String s) {
+    assertThat(Cql2SqlUtil.cql2string(cql), is(s));
+  }
+
+  public Object hasCqlWildcardParams() {
+    return params(
+        "a      false",
+        "*      true ",
+        "?      true ",
+        "^      true ",
+        "a*     true ",
+        "\\*    false",
+        "\\?    false",
+        "\\^    false",
+        "\\\\   false",
+        "\\\\*  true ",
+        "a\\*b  false",
+        "\\*a?  true "
+        );
+  }
+
+  @Test
+  @Parameters(method = "hasCqlWildcardParams")
+  public void hasCqlWildcard(String cql, String expected) {
+    assertThat(Cql2SqlUtil.hasCqlWildcard(cql), is(Boolean.parseBoolean(expected)));
+  }
+
   @Test
   @Parameters({
     // 6 examples from
@@ -154,4 +200,59 @@ public class Cql2SqlUtilTest {
   public void isNotPostgresNumber(String term) {
     assertThat(Cql2SqlUtil.isPostgresNumber(term), is(false));
   }
+
+  @Test
+  @Parameters({
+    "2019-02-28                      , 2019-02-28T00:00:00.000+0000",
+    "2019-02-28T16:40                , 2019-02-28T16:40:00.000+0000",
+    "2019-02-28 16:40:05Z            , 2019-02-28T16:40:05.000+0000",
+    "2019-02-28T16:40:00.123456+0000 , 2019-02-28T16:40:00.123+0000",
+    "2019-02-28T18:40:00.5+02        , 2019-02-28T16:40:00.500+0000",
+    "2019-02-28T18:40:00+02:00       , 2019-02-28T16:40:00.000+0000",
+    "2019-03-01T01:10:00+0130        , 2019-02-28T23:40:00.000+0000",
+    "2019-02-28T16:40:00-0100        , 2019-02-28T17:40:00.000+0000",
+  })
+  public void toUtcTimestamp(String s, String expected) {
+    assertThat(Cql2SqlUtil.toUtcTimestamp(s), is(expected));
+  }
+
+  @Test
+  @Parameters({
+    "2019-02-28",
+    "2019-02-28T23:40:00.000+0200",
+  })
+  public void toIsoDate(String s) {
+    assertThat(Cql2SqlUtil.toIsoDate(s), is("2019-02-28"));
+  }
+
+  @Test
+  public void toUtcDayRange() {
+    assertThat(Cql2SqlUtil.toUtcDayRange("2019-02-28"),
+        is(new String [] { "2019-02-28T00:00:00.000+0000", "2019-03-01T00:00:00.000+0000" }));
+    assertThat(Cql2SqlUtil.toUtcDayRange("2019-12-31"),
+        is(new String [] { "2019-12-31T00:00:00.000+0000", "2020-01-01T00:00:00.000+0000" }));
+    assertThat(Cql2SqlUtil.toUtcDayRange("2019-02-28T00:00"), is(nullValue()));
+  }
+
+  @Test
+  @Parameters({
+    "2019-02-30",
+    "2019-02-28T24:00",
+    "2019-02-28T",
+    "28.02.2019",
+  })
+  public void invalidIsoDate(String s) {
+    try {
+      Cql2SqlUtil.toUtcTimestamp(s);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      Cql2SqlUtil.toIsoDate(s);
+      fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
 }
@@ -32,6 +32,8 @@ public class DatabaseTestBase {
   private static PostgresProcess postgresProcess;
   /** java.sql.Connection to be used for the tests */
   static Connection conn;
+  /** JDBC URL of conn, for tests that need more connections */
+  static String connectionUrl;
 
   /** pattern of the EXPAIN ANALYSE reply containing the execution time in ms as group 1 */
   private static final Pattern executionTimePattern =
@@ -137,6 +139,7 @@ public class DatabaseTestBase {
           System.out.println(url2);
           conn = DriverManager.getConnection(url);
         }
+        connectionUrl = url;
         return;
       }
       catch (SQLException|UnsupportedEncodingException e) {
@@ -165,6 +168,7 @@ public class DatabaseTestBase {
       PostgresExecutable exec = runtime.prepare(config);
       postgresProcess = exec.start();
       conn = DriverManager.getConnection(url);
+      connectionUrl = url;
     } catch (IOException | SQLException e) {
       throw new SQLRuntimeException(e.getMessage(), e);
     }
@@ -203,6 +207,18 @@ public class DatabaseTestBase {
     }
   }
 
+  /**
+   * @return the major version of the database server of conn, for example 12
+   * @throws RuntimeException on SQLException
+   */
+  static int serverMajorVersion() {
+    try {
+      return conn.getMetaData().getDatabaseMajorVersion();
+    } catch (SQLException e) {
+      throw new SQLRuntimeException(e.getMessage(), e);
+    }
+  }
+
   /**
    * Run the SQL statement on conn with EXPLAIN ANALYSE.
    * @param sqlStatement  the SQL command to run (without prepended EXPLAIN ANALYSE).
@@ -0,0 +1,159 @@
+package org.z3950.zing.cql.cql2pgjson;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.folio.cql2pgjson.executor.ExecutionStats;
+import org.folio.cql2pgjson.executor.FanOutExecutor;
+import org.folio.cql2pgjson.model.SqlFanOut;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.postgresql.ds.PGSimpleDataSource;
+
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+
+@RunWith(JUnitParamsRunner.class)
+public class FanOutExecutorTest extends DatabaseTestBase {
+  private static PGSimpleDataSource dataSource;
+
+  @BeforeClass
+  public static void runOnceBeforeClass() {
+    setupDatabase();
+    runSqlFile("users.sql");
+    runSqlFile("jo-ka-lea.sql");
+    dataSource = new PGSimpleDataSource();
+    dataSource.setUrl(connectionUrl);
+  }
+
+  @AfterClass
+  public static void runOnceAfterClass() {
+    closeDatabase();
+  }
+
+  private static CQL2PgJSON cql2pgJson() throws Exception {
+    CQL2PgJSON aCql2pgJson = new CQL2PgJSON("users.user_data", Arrays.asList("name", "email"));
+    aCql2pgJson.getDbTable().setPkColumnName("_id");
+    return aCql2pgJson;
+  }
+
+  @Test
+  @Parameters({
+    "name=Jo or name=Ka or email==lea@example.com sortBy name          # 3 # Jo Jane; Ka Keller; Lea Long",
+    "name=Jo or name=Ka or email==lea@example.com sortBy name/sort.descending # 3 # Lea Long; Ka Keller; Jo Jane",
+    "name=Jo or email==jo* sortBy name                                  # 2 # Jo Jane",
+    "Jo*                                                                # 2 # Jo Jane",
+    "name=Lea or cql.allRecords=1                                       # 2 # Jo Jane; Ka Keller; Lea Long",
+    "cql.allRecords=1 or name=Jo sortBy address.zip/number              # 2 # Ka Keller; Jo Jane; Lea Long",
+    "cql.allRecords=1 or name=Jo sortBy number/number/sort.descending name # 2 # Ka Keller; Lea Long; Jo Jane",
+    "name=Jo and name=Ka                                                # 1 #",
+  })
+  public void fanOut(String testcase) throws Exception {
+    String [] split = testcase.split("#", -1);
+    SqlFanOut fanOut = cql2pgJson().toSqlFanOut(split[0].trim());
+    assertEquals(Integer.parseInt(split[1].trim()), fanOut.getWheres().size());
+    FanOutExecutor fanOutExecutor = new FanOutExecutor(dataSource);
+    fanOutExecutor.setFetchSize(1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExecutionStats stats = fanOutExecutor.stream("users", "user_data", fanOut, out);
+    List<String> names = new ArrayList<>();
+    ObjectMapper mapper = new ObjectMapper();
+    for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+      if (! line.isEmpty()) {
+        names.add(mapper.readTree(line).path("name").asText());
+      }
+    }
+    assertEquals(split[2].trim(), String.join("; ", names));
+    assertEquals(names.size(), stats.getRows());
+  }
+
+  @Test
+  public void branchFailure() throws Exception {
+    SqlFanOut fanOut = new SqlFanOut(Arrays.asList("true", "foo"),
+        Arrays.asList(new SqlFanOut.SortKey("_id", false, SqlFanOut.SortKeyType.ID)));
+    try {
+      new FanOutExecutor(dataSource).stream("users", "user_data", fanOut, new ByteArrayOutputStream());
+      fail("SQLException expected");
+    } catch (SQLException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("foo"));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void branchRuntimeException() throws Exception {
+    PGSimpleDataSource secondConnectionFails = new PGSimpleDataSource() {
+      private final AtomicInteger connections = new AtomicInteger();
+
+      @Override
+      public Connection getConnection() throws SQLException {
+        if (connections.incrementAndGet() == 2) {
+          throw new UnsupportedOperationException("second branch");
+        }
+        return super.getConnection();
+      }
+    };
+    secondConnectionFails.setUrl(connectionUrl);
+    try {
+      new FanOutExecutor(secondConnectionFails).stream("users", "user_data",
+          cql2pgJson().toSqlFanOut("name=Jo or name=Ka or name=Lea"), new ByteArrayOutputStream());
+      fail("UnsupportedOperationException expected");
+    } catch (UnsupportedOperationException e) {
+      assertEquals("second branch", e.getMessage());
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void branchThreadsEnd() throws Exception {
+    SqlFanOut fanOut = new SqlFanOut(Arrays.asList("true", "foo", "true"),
+        Arrays.asList(new SqlFanOut.SortKey("_id", false, SqlFanOut.SortKeyType.ID)));
+    FanOutExecutor fanOutExecutor = new FanOutExecutor(dataSource);
+    // the first branch blocks because the merge doesn't take its rows
+    fanOutExecutor.setFetchSize(1);
+    try {
+      fanOutExecutor.stream("users", "user_data", fanOut, new ByteArrayOutputStream());
+      fail("SQLException expected");
+    } catch (SQLException e) {
+      // expected
+    }
+    while (branchThreads() > 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  private static int branchThreads() {
+    int n = 0;
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.getName().startsWith("FanOutExecutor-branch-")) {
+        n++;
+      }
+    }
+    return n;
+  }
+
+  @Test
+  public void textComparator() {
+    Comparator<String> c = FanOutExecutor.textComparator("C");
+    assertTrue(c.compare("B", "a") < 0);
+    assertTrue(FanOutExecutor.textComparator("POSIX").compare("B", "a") < 0);
+    assertTrue(FanOutExecutor.textComparator("C.UTF-8").compare("B", "a") < 0);
+    c = FanOutExecutor.textComparator("en_US.UTF-8");
+    assertTrue(c.compare("a", "B") < 0);
+    assertTrue(c.compare("B", "c") < 0);
+    assertEquals(0, c.compare("a", "a"));
+    // ties of the collation are broken by the bytes
+    assertTrue(c.compare("a", "A") != 0);
+  }
+}
@@ -5,6 +5,7 @@ import static org.junit.Assert.fail;
 import java.io.IOException;
 
 import org.folio.cql2pgjson.exception.CQL2PgJSONException;
+import org.folio.cql2pgjson.tbd.Schema;
 import org.junit.AfterClass;
 import org.junit.Assume;
 import org.junit.BeforeClass;
@@ -120,6 +121,11 @@ public class IndexPerformanceTest extends DatabaseTestBase {
     in50ms("WHERE " + cql2pgJson.cql2pgJson("num == 0.0040 sortBy num"));
     in50ms("WHERE " + cql2pgJson.cql2pgJson("num == 0.005  sortBy num"));
     in50ms("WHERE " + cql2pgJson.cql2pgJson("num == 0.0060 sortBy num"));
+    // the record schema types num as number, this omits the recheck of numbers stored as strings
+    cql2pgJson.setRecordSchema(new Schema(Util.getResource("indexPerformanceTest.json")));
+    in50ms("WHERE " + cql2pgJson.cql2pgJson("num ==/number 0.003 sortBy num/number"));
+    in50ms("WHERE " + cql2pgJson.cql2pgJson("num >/number 0.9999 sortBy num/number"));
+    in50ms("WHERE " + cql2pgJson.cql2pgJson("num <=/number 1e-4 sortBy num/number/sort.descending"));
   }
 }
 
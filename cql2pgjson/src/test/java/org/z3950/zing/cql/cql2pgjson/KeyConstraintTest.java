@@ -0,0 +1,67 @@
+package org.z3950.zing.cql.cql2pgjson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+
+import org.folio.cql2pgjson.model.KeyConstraint;
+import org.junit.Test;
+
+public class KeyConstraintTest {
+  @Test
+  public void of() {
+    assertThat(KeyConstraint.of("=",  "b").toString(), is("b"));
+    assertThat(KeyConstraint.of("<",  "b").toString(), is("[,b)"));
+    assertThat(KeyConstraint.of("<=", "b").toString(), is("[,b]"));
+    assertThat(KeyConstraint.of(">",  "b").toString(), is("(b,]"));
+    assertThat(KeyConstraint.of(">=", "b").toString(), is("[b,]"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void ofUnknownComparator() {
+    KeyConstraint.of("<>", "b");
+  }
+
+  @Test
+  public void and() {
+    assertThat(KeyConstraint.of(">", "b").and(KeyConstraint.of("<=", "d")).toString(), is("(b,d]"));
+    assertThat(KeyConstraint.of(">=", "b").and(KeyConstraint.of(">", "b")).toString(), is("(b,]"));
+    assertThat(KeyConstraint.of(">=", "b").and(KeyConstraint.of("<=", "b")).toString(), is("b"));
+    assertThat(KeyConstraint.of(">", "b").and(KeyConstraint.of("<=", "b")).isEmpty(), is(true));
+    assertThat(KeyConstraint.of("=", "b").and(KeyConstraint.of("=", "c")).isEmpty(), is(true));
+    assertThat(KeyConstraint.ALL.and(KeyConstraint.of("=", "b")).toString(), is("b"));
+    assertThat(KeyConstraint.of("=", "b").or(KeyConstraint.of("=", "c"))
+        .and(KeyConstraint.of(">", "b")).toString(), is("c"));
+  }
+
+  @Test
+  public void or() {
+    KeyConstraint bc = KeyConstraint.of("=", "b").or(KeyConstraint.of("=", "c"));
+    assertThat(bc.toString(), is("b OR c"));
+    assertThat(bc.isPointSet(), is(true));
+    assertThat(bc.getPoints(), is(Arrays.asList("b", "c")));
+    assertThat(bc.or(KeyConstraint.ALL).isUnbounded(), is(true));
+    assertThat(KeyConstraint.of("<", "b").or(KeyConstraint.of(">=", "b")).isUnbounded(), is(false));
+    assertThat(KeyConstraint.of("<", "b").getPoints(), is(nullValue()));
+  }
+
+  @Test
+  public void contains() {
+    KeyConstraint constraint = KeyConstraint.of(">", "b").and(KeyConstraint.of("<", "d"));
+    assertThat(constraint.contains("b"), is(false));
+    assertThat(constraint.contains("c"), is(true));
+    assertThat(constraint.contains("d"), is(false));
+    assertThat(KeyConstraint.NONE.contains("c"), is(false));
+    assertThat(KeyConstraint.ALL.contains("c"), is(true));
+  }
+
+  @Test
+  public void numbers() {
+    KeyConstraint constraint = KeyConstraint.of(">=", "9").and(KeyConstraint.of("<", "10"));
+    assertThat(constraint.toString(), is("[9,10)"));
+    assertThat(constraint.contains("9.5"), is(true));
+    assertThat(KeyConstraint.of("=", "1.0").and(KeyConstraint.of("=", "1")).isPointSet(), is(true));
+  }
+}
@@ -0,0 +1,98 @@
+package org.z3950.zing.cql.cql2pgjson;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.folio.cql2pgjson.executor.ExecutionStats;
+import org.folio.cql2pgjson.executor.QueryExecutor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class QueryExecutorTest extends DatabaseTestBase {
+  @BeforeClass
+  public static void runOnceBeforeClass() {
+    setupDatabase();
+    runSqlFile("users.sql");
+    runSqlFile("jo-ka-lea.sql");
+  }
+
+  @AfterClass
+  public static void runOnceAfterClass() {
+    closeDatabase();
+  }
+
+  private static String [] lines(ByteArrayOutputStream out) {
+    return new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+  }
+
+  @Test
+  public void streamJsonb() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ExecutionStats stats = new QueryExecutor(conn).stream("users", "user_data",
+        new CQL2PgJSON("users.user_data").toSql("name=* sortBy name/sort.descending"), out);
+    assertEquals(3, stats.getRows());
+    String [] lines = lines(out);
+    assertEquals(3, lines.length);
+    ObjectMapper mapper = new ObjectMapper();
+    assertEquals("Lea Long", mapper.readTree(lines[0]).path("name").asText());
+    assertEquals("Ka Keller", mapper.readTree(lines[1]).path("name").asText());
+    assertEquals(2450, mapper.readTree(lines[2]).path("address").path("zip").asInt());
+  }
+
+  @Test
+  public void streamColumns() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    new QueryExecutor(conn).stream("SELECT _id, user_data->>'name' AS name, (user_data->>'number')::int AS number,"
+        + " user_data->'lang' AS lang, user_data->'number' IS NOT NULL AS b, 1.50 AS d FROM users ORDER BY name", out);
+    String [] lines = lines(out);
+    assertEquals(3, lines.length);
+    assertEquals("{\"_id\":\"11111111-1111-1111-1111-111111111111\",\"name\":\"Jo Jane\",\"number\":4,"
+        + "\"lang\":[\"en\", \"pl\"],\"b\":true,\"d\":1.50}", lines[0]);
+    assertEquals("{\"_id\":\"22222222-2222-2222-2222-222222222222\",\"name\":\"Ka Keller\",\"number\":null,"
+        + "\"lang\":[\"en\", \"dk\", \"fi\"],\"b\":false,\"d\":1.50}", lines[1]);
+  }
+
+  @Test
+  public void fetchSizeAndProgress() throws Exception {
+    QueryExecutor queryExecutor = new QueryExecutor(conn);
+    queryExecutor.setFetchSize(2);
+    assertEquals(2, queryExecutor.getFetchSize());
+    List<Long> progress = new ArrayList<>();
+    queryExecutor.setProgressListener(stats -> progress.add(stats.getRows()));
+    conn.setAutoCommit(true);
+    ExecutionStats stats = queryExecutor.stream("SELECT user_data FROM users", new ByteArrayOutputStream());
+    assertEquals(3, stats.getRows());
+    assertTrue(stats.getRowsPerSecond() > 0);
+    assertEquals(1, progress.size());
+    assertEquals(Long.valueOf(2), progress.get(0));
+    assertTrue(conn.getAutoCommit());
+  }
+
+  @Test
+  public void invalidSql() throws Exception {
+    conn.setAutoCommit(true);
+    try {
+      new QueryExecutor(conn).stream("SELECT foo FROM users", new ByteArrayOutputStream());
+      fail("SQLException expected");
+    } catch (SQLException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("foo"));
+    }
+    assertTrue(conn.getAutoCommit());
+    // connection is still usable after the rollback
+    ExecutionStats stats = new QueryExecutor(conn).stream("SELECT 1", new ByteArrayOutputStream());
+    assertEquals(1, stats.getRows());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidFetchSize() {
+    new QueryExecutor(conn).setFetchSize(0);
+  }
+}
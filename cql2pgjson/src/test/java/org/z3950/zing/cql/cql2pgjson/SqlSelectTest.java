@@ -4,6 +4,7 @@ import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import org.folio.cql2pgjson.model.SqlSelect;
+import org.folio.cql2pgjson.model.TableSample;
 import org.junit.Test;
 
 public class SqlSelectTest {
@@ -38,4 +39,32 @@ public class SqlSelectTest {
     assertThat(sqlSelect.getOrderBy(), is(""));
     assertThat(sqlSelect.toString(),   is(""));
   }
+
+  @Test
+  public void sqlSelectTableSample() {
+    TableSample tableSample = new TableSample(TableSample.Method.BERNOULLI, 0.5, null);
+    SqlSelect sqlSelect = new SqlSelect("TRUE", "a", tableSample);
+    assertThat(sqlSelect.getTableSample(), is(tableSample));
+    assertThat(sqlSelect.toString(),   is("TABLESAMPLE BERNOULLI (0.5) WHERE TRUE ORDER BY a"));
+    sqlSelect = new SqlSelect(null, null, new TableSample(TableSample.Method.SYSTEM, 100, -7L));
+    assertThat(sqlSelect.toString(),   is("TABLESAMPLE SYSTEM (100) REPEATABLE (-7)"));
+  }
+
+  @Test
+  public void tableSampleScale() {
+    assertThat(new TableSample(TableSample.Method.SYSTEM, 2.5, 1L).scale(3), is(120L));
+    assertThat(new TableSample(TableSample.Method.SYSTEM, 100, 1L).scale(3), is(3L));
+    assertThat(new TableSample(TableSample.Method.SYSTEM, 7, 1L).scale(3), is(43L));
+    assertThat(new TableSample(TableSample.Method.SYSTEM, 7, 1L).scaleSql("3"), is("round(3 * 100.0 / 7)::bigint"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tableSampleZero() {
+    new TableSample(TableSample.Method.SYSTEM, 0, null);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tableSampleAbove100() {
+    new TableSample(TableSample.Method.BERNOULLI, 100.1, null);
+  }
 }
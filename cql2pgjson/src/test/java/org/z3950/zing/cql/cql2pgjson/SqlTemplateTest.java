@@ -0,0 +1,38 @@
+package org.z3950.zing.cql.cql2pgjson;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.folio.cql2pgjson.model.SqlSelect;
+import org.folio.cql2pgjson.model.SqlTemplate;
+import org.junit.Test;
+
+public class SqlTemplateTest {
+  @Test
+  public void fill() {
+    SqlTemplate sqlTemplate = new SqlTemplate(new SqlSelect(
+        "${schema}.users.jsonb->>'a' = '${schema}' AND ${schema}.users.jsonb->>'b' = 'x''${schema}'",
+        "${schema}.users.jsonb->>'a'"));
+    SqlSelect sqlSelect = sqlTemplate.fill("diku_mod_users");
+    assertThat(sqlSelect.getWhere(), is("diku_mod_users.users.jsonb->>'a' = '${schema}'"
+        + " AND diku_mod_users.users.jsonb->>'b' = 'x''${schema}'"));
+    assertThat(sqlSelect.getOrderBy(), is("diku_mod_users.users.jsonb->>'a'"));
+    assertThat(sqlTemplate.fill("t2").getOrderBy(), is("t2.users.jsonb->>'a'"));
+  }
+
+  @Test
+  public void fillEmpty() {
+    SqlSelect sqlSelect = new SqlTemplate(new SqlSelect("true", null)).fill("t");
+    assertThat(sqlSelect.toString(), is("WHERE true"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void invalidSchema() {
+    new SqlTemplate(new SqlSelect("true", null)).fill("t; DROP TABLE x");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void nullSchema() {
+    new SqlTemplate(new SqlSelect("true", null)).fill(null);
+  }
+}
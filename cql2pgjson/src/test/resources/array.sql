@@ -9,4 +9,5 @@ INSERT INTO users (user_data) VALUES
     ('{"name": "g", "lang": ["en\""                            ] }'),
     ('{"name": "h", "lang": ["\"en\""                          ] }'),
     ('{"name": "i", "lang": ["au", "ar", "at", "de", "dk", "en"] }'),
-    ('{"name": "n"                                               }');
+    ('{"name": "n"                                               }'),
+    ('{"name": "s", "lang": "[]"                                 }');
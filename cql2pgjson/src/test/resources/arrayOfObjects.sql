@@ -0,0 +1,10 @@
+DELETE FROM users;
+INSERT INTO users (user_data) VALUES
+    ('{"name": "a", "identifiers": [                                                    ] }'),
+    ('{"name": "b", "identifiers": [ {"value": "6316800312", "identifierTypeId": "isbn"} ] }'),
+    ('{"name": "c", "identifiers": [ {"value": "6316800312", "identifierTypeId": "oclc"} ] }'),
+    ('{"name": "d", "identifiers": [ {"value": "(OCoLC)968777846", "identifierTypeId": "oclc"},
+                                      {"value": "9780552",    "identifierTypeId": "isbn"} ] }'),
+    ('{"name": "e", "identifiers": [ {"value": "X-123",      "identifierTypeId": "isbn"} ] }'),
+    ('{"name": "f", "identifiers": "6316800312"                                            }'),
+    ('{"name": "n"                                                                          }');
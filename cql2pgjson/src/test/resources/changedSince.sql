@@ -0,0 +1,7 @@
+DELETE FROM users;
+INSERT INTO users (_id, user_data) VALUES
+    ('11111111-1111-1111-1111-111111111111', '{"name": "Jo Jane",   "metadata": {"updatedDate": "2019-03-11T10:00:00.000+0000"}}'),
+    ('22222222-2222-2222-2222-222222222222', '{"name": "Ka Keller", "metadata": {"updatedDate": "2019-03-12T10:00:00.000+0000"}}'),
+    ('33333333-3333-3333-3333-333333333333', '{"name": "Lea Long",  "metadata": {"updatedDate": "2019-03-12T10:00:00.000+0000"}}'),
+    ('44444444-4444-4444-4444-444444444444', '{"name": "Mo Miller", "metadata": {"updatedDate": "2019-03-10T10:00:00.000+0000"}}'),
+    ('55555555-5555-5555-5555-555555555555', '{"name": "Ned Nash",  "metadata": {"updatedDate": "2019-03-13T10:00:00.000+0000"}}');
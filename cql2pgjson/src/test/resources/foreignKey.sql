@@ -0,0 +1,19 @@
+DROP TABLE IF EXISTS members;
+DROP TABLE IF EXISTS groups;
+CREATE TABLE groups (_id UUID PRIMARY KEY, jsonb JSONB NOT NULL);
+INSERT INTO groups (_id, jsonb) VALUES
+    ('aaaaaaaa-1111-1111-1111-111111111111', '{"group": "staff"}'),
+    ('bbbbbbbb-2222-2222-2222-222222222222', '{"group": "student"}'),
+    ('cccccccc-3333-3333-3333-333333333333', '{"group": "faculty"}');
+-- the foreign key columns that RMB creates for the foreignKeys entries of schema.json
+ALTER TABLE users ADD COLUMN IF NOT EXISTS groupId UUID;
+DELETE FROM users;
+INSERT INTO users (_id, groupId, user_data) VALUES
+    ('11111111-1111-1111-1111-111111111111', 'aaaaaaaa-1111-1111-1111-111111111111',
+     '{"name": "Jo Jane",   "groupId": "aaaaaaaa-1111-1111-1111-111111111111"}'),
+    ('22222222-2222-2222-2222-222222222222', 'aaaaaaaa-1111-1111-1111-111111111111',
+     '{"name": "Ka Keller", "groupId": "aaaaaaaa-1111-1111-1111-111111111111"}'),
+    ('33333333-3333-3333-3333-333333333333', 'bbbbbbbb-2222-2222-2222-222222222222',
+     '{"name": "Lea Long",  "groupId": "bbbbbbbb-2222-2222-2222-222222222222"}');
+CREATE TABLE members (_id UUID PRIMARY KEY, jsonb JSONB NOT NULL, groupId UUID REFERENCES groups);
+INSERT INTO members (_id, groupId, jsonb) SELECT _id, groupId, user_data FROM users;
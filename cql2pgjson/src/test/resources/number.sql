@@ -0,0 +1,8 @@
+DELETE FROM users;
+INSERT INTO users (user_data) VALUES
+    ('{"name": "a", "num": 1    }'),
+    ('{"name": "b", "num": "2"  }'),
+    ('{"name": "c", "num": 10   }'),
+    ('{"name": "d", "num": "abc"}'),
+    ('{"name": "e", "num": "1e1"}'),
+    ('{"name": "f"              }');
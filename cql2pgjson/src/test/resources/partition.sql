@@ -0,0 +1,17 @@
+DROP TABLE IF EXISTS events;
+CREATE TABLE events (id UUID NOT NULL, date_key date NOT NULL, jsonb JSONB NOT NULL) PARTITION BY RANGE (date_key);
+CREATE TABLE events_2019 PARTITION OF events FOR VALUES FROM ('2019-01-01') TO ('2020-01-01');
+CREATE TABLE events_2020 PARTITION OF events FOR VALUES FROM ('2020-01-01') TO ('2021-01-01');
+INSERT INTO events (id, date_key, jsonb) VALUES
+    ('11111111-1111-1111-1111-111111111111', '2019-12-31', '{"name": "a", "date": "2019-12-31"}'),
+    ('22222222-2222-2222-2222-222222222222', '2020-01-01', '{"name": "b", "date": "2020-01-01"}'),
+    ('33333333-3333-3333-3333-333333333333', '2020-06-15', '{"name": "c", "date": "2020-06-15"}');
+DROP TABLE IF EXISTS logs;
+CREATE TABLE logs (id UUID NOT NULL, updated_key text NOT NULL, jsonb JSONB NOT NULL) PARTITION BY RANGE (updated_key);
+CREATE TABLE logs_2018 PARTITION OF logs FOR VALUES FROM (MINVALUE) TO ('2019');
+CREATE TABLE logs_2019 PARTITION OF logs FOR VALUES FROM ('2019') TO ('2020');
+CREATE TABLE logs_2020 PARTITION OF logs FOR VALUES FROM ('2020') TO (MAXVALUE);
+INSERT INTO logs (id, updated_key, jsonb) VALUES
+    ('11111111-1111-1111-1111-111111111111', '2019-02-28T16:40:00.000+0000', '{"name": "a", "metadata": {"updatedDate": "2019-02-28T16:40:00.000+0000"}}'),
+    ('22222222-2222-2222-2222-222222222222', '2020-01-01T00:30:00.000+0000', '{"name": "b", "metadata": {"updatedDate": "2020-01-01T00:30:00.000+0000"}}'),
+    ('33333333-3333-3333-3333-333333333333', '2018-05-05T00:00:00.000+0000', '{"name": "c", "metadata": {"updatedDate": "2018-05-05T00:00:00.000+0000"}}');
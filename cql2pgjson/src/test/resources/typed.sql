@@ -0,0 +1,6 @@
+DELETE FROM users;
+INSERT INTO users (user_data) VALUES
+    ('{"name": "a", "active": true,  "birthday": "1990-01-31", "metadata": {"updatedDate": "2019-02-28T16:40:00.000+0000"}, "count":  9}'),
+    ('{"name": "b", "active": false, "birthday": "1990-02-01", "metadata": {"updatedDate": "2019-02-28T16:40:00.000+0000"}, "count": 10}'),
+    ('{"name": "c", "active": true,  "birthday": "2001-12-24", "metadata": {"updatedDate": "2019-03-01T00:00:00.000+0000"}, "count": 100}'),
+    ('{"name": "n"                                                                                                                  }');